@@ -16,6 +16,7 @@
 package de.codesourcery.geoip;
 
 import java.lang.reflect.Constructor;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,6 +28,9 @@ import org.json.JSONWriter;
 /**
  * The location of a specific {@link ISubject} along with an arbitrary set of associated parameters/metadata.
  * 
+ * <p>Instances are mutable unless they have been {@link #freeze() frozen} or were created by a {@link Builder}, 
+ * frozen instances may be freely shared between threads.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  *
  * @param <SUBJECT>
@@ -38,6 +42,7 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 	private final SUBJECT subject;
 	private final Coordinate coordinate;
 	private final boolean hasValidCoordinates;
+	private final boolean frozen;
 
 	private final Map<String,Object> parameters;
 	/**
@@ -52,15 +57,76 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 	 * @see GeoLocation#parameters()
 	 */
 	public static final String KEY_CITY = "city";
+	/**
+	 * The network block (CIDR notation, e.g. <code>192.0.2.0/24</code>) this location
+	 * applies to, if known. 
+	 * 
+	 * @see GeoLocation#parameter(String)
+	 * @see GeoLocation#parameters()
+	 */
+	public static final String KEY_NETWORK = "network";
 
 	/**
 	 * Creates a shallow copy of this instance (no deep-copying of parameters).
+	 * 
+	 * <p>The copy is always mutable, even if this instance is frozen.</p>
 	 * @return
 	 */
 	public GeoLocation<SUBJECT> createShallowCopy() 
 	{
-		return new GeoLocation<>( subject , coordinate , hasValidCoordinates , new HashMap<>( parameters ) );
+		return new GeoLocation<>( subject , coordinate , hasValidCoordinates , new HashMap<>( parameters ) , false );
 	}	
+	
+	/**
+	 * Returns an immutable version of this instance.
+	 * 
+	 * @return this instance if it's already frozen, otherwise a frozen copy
+	 * @see #isFrozen()
+	 */
+	public GeoLocation<SUBJECT> freeze() 
+	{
+		if ( frozen ) {
+			return this;
+		}
+		return new GeoLocation<>( subject , coordinate , hasValidCoordinates , Collections.unmodifiableMap( new HashMap<>( parameters ) ) , true );
+	}
+	
+	/**
+	 * Returns whether this instance is immutable.
+	 * 
+	 * <p>Trying to change parameters of a frozen instance throws an <code>UnsupportedOperationException</code>.</p>
+	 * @return
+	 * @see #freeze()
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	/**
+	 * Returns a location with the same coordinates and parameters but a different subject.
+	 * 
+	 * <p>If this instance is frozen, the returned instance is frozen as well and shares this instance's parameters.</p>
+	 * 
+	 * @param newSubject
+	 * @return
+	 */
+	public GeoLocation<SUBJECT> withSubject(SUBJECT newSubject) 
+	{
+		if ( frozen ) {
+			return new GeoLocation<>( newSubject , coordinate , hasValidCoordinates , parameters , true );
+		}
+		return new GeoLocation<>( newSubject , coordinate , hasValidCoordinates , new HashMap<>( parameters ) , false );
+	}
+	
+	/**
+	 * Creates a builder for frozen instances.
+	 * 
+	 * @param subject
+	 * @return
+	 */
+	public static <T extends ISubject<?>> Builder<T> builder(T subject) {
+		return new Builder<>( subject );
+	}
 
 	/**
 	 * Creates an instance marked as <b>invalid</b>.
@@ -76,6 +142,7 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 		this.subject = subject;
 		this.coordinate = Coordinate.ZERO;
 		hasValidCoordinates = false;
+		frozen = false;
 		parameters = new HashMap<>();
 	}
 
@@ -95,6 +162,7 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 		this.subject = subject;
 		this.coordinate = new Coordinate(latitude, longitude);
 		this.hasValidCoordinates = true;
+		this.frozen = false;
 		parameters = new HashMap<>();
 	}
 
@@ -115,6 +183,7 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 		this.subject = subject;
 		this.coordinate = new Coordinate(latitude, longitude);
 		this.hasValidCoordinates = isValid;
+		this.frozen = false;
 		parameters = new HashMap<>();
 	}
 
@@ -125,10 +194,11 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 	 * @param coordinate
 	 * @param isValid
 	 * @param parameters
+	 * @param frozen
 	 * 
 	 * @see #hasValidCoordinates()
 	 */
-	private GeoLocation(SUBJECT subject, Coordinate coordinate,boolean isValid,Map<String,Object> parameters) 
+	private GeoLocation(SUBJECT subject, Coordinate coordinate,boolean isValid,Map<String,Object> parameters,boolean frozen) 
 	{
 		if ( subject == null ) {
 			throw new IllegalArgumentException("subject must not be null");
@@ -137,6 +207,7 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 		this.coordinate = coordinate;
 		this.hasValidCoordinates = isValid;
 		this.parameters = parameters;
+		this.frozen = frozen;
 	}		
 
 	/**
@@ -183,7 +254,7 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 		final Coordinate coordinates = Coordinate.fromJSON( obj.getJSONObject( "coords" ) );
 		final boolean isValid = obj.getBoolean("valid");
 		final Map<String,Object> params = readMap( obj.getJSONObject("parameters" ) );
-		return new GeoLocation<T>(subject,coordinates , isValid , params );
+		return new GeoLocation<T>(subject,coordinates , isValid , params , false );
 	}	
 
 	private static Map<String, Object> readMap(JSONObject jsonObject) 
@@ -284,6 +355,9 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 	}
 
 	public GeoLocation<SUBJECT> setParameter(String key,Object value) {
+		if ( frozen ) {
+			throw new UnsupportedOperationException("Cannot change parameters of frozen instance "+this);
+		}
 		parameters.put(key, value);
 		return this;
 	}
@@ -332,4 +406,59 @@ public class GeoLocation<SUBJECT extends ISubject<?>>
 		Object result = parameters.get(key);
 		return result != null ? result : defaultValue;
 	}
+
+	/**
+	 * Builder for frozen {@link GeoLocation} instances.
+	 * 
+	 * @author tobias.gierke@code-sourcery.de
+	 *
+	 * @param <SUBJECT>
+	 * @see GeoLocation#builder(ISubject)
+	 */
+	public static final class Builder<SUBJECT extends ISubject<?>> 
+	{
+		private final SUBJECT subject;
+		private Coordinate coordinate = Coordinate.ZERO;
+		private boolean isValid;
+		private final Map<String,Object> parameters = new HashMap<>();
+		
+		private Builder(SUBJECT subject) 
+		{
+			if ( subject == null ) {
+				throw new IllegalArgumentException("subject must not be null");
+			}
+			this.subject = subject;
+		}
+		
+		/**
+		 * Sets the coordinates and marks the location as {@link GeoLocation#hasValidCoordinates() valid}.
+		 * 
+		 * @param latitude
+		 * @param longitude
+		 * @return
+		 */
+		public Builder<SUBJECT> coordinate(double latitude,double longitude) 
+		{
+			this.coordinate = new Coordinate( latitude , longitude );
+			this.isValid = true;
+			return this;
+		}
+		
+		public Builder<SUBJECT> valid(boolean isValid) 
+		{
+			this.isValid = isValid;
+			return this;
+		}
+		
+		public Builder<SUBJECT> parameter(String key,Object value) 
+		{
+			parameters.put( key , value );
+			return this;
+		}
+		
+		public GeoLocation<SUBJECT> build() 
+		{
+			return new GeoLocation<>( subject , coordinate , isValid , Collections.unmodifiableMap( new HashMap<>( parameters ) ) , true );
+		}
+	}
 }
\ No newline at end of file
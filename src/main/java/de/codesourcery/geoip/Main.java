@@ -27,6 +27,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -35,7 +36,11 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -55,6 +60,7 @@ import de.codesourcery.geoip.locate.DelegatingGeoLocator;
 import de.codesourcery.geoip.locate.FreeGeoIPLocator;
 import de.codesourcery.geoip.locate.IGeoLocator;
 import de.codesourcery.geoip.locate.IPInfoDbLocator;
+import de.codesourcery.geoip.locate.IntervalTableGeoLocator;
 import de.codesourcery.geoip.locate.MaxMindGeoLocator;
 import de.codesourcery.geoip.render.CurvedLineRenderer;
 import de.codesourcery.geoip.render.DefaultMapElementRendererFactory;
@@ -98,8 +104,21 @@ public class Main {
     
 	private IGeoLocator<StringSubject> createGeoLocator() 
 	{
-	    final DelegatingGeoLocator<StringSubject> delegate = new DelegatingGeoLocator<>( new MaxMindGeoLocator() , new IPInfoDbLocator() , new FreeGeoIPLocator() );
-		return new CachingGeoLocator<StringSubject>( delegate , StringSubject.class ); 
+	    final DelegatingGeoLocator<StringSubject> delegate = new DelegatingGeoLocator<>( new IntervalTableGeoLocator( new File("geolite2") ) , new MaxMindGeoLocator() , new IPInfoDbLocator() , new FreeGeoIPLocator() );
+	    delegate.setChaining( true );
+	    delegate.setAdaptiveOrdering( true );
+	    delegate.setHedging( 0.95 , 500 , TimeUnit.MILLISECONDS );
+	    delegate.setCircuitBreaker( 5 , 30 , TimeUnit.SECONDS );
+		final CachingGeoLocator<StringSubject> result = new CachingGeoLocator<StringSubject>( delegate , StringSubject.class );
+		result.setMaxConcurrency( 8 );
+		result.setTimeToLive( 30 , TimeUnit.DAYS );
+		result.setNegativeTimeToLive( 1 , TimeUnit.DAYS );
+		result.setRefreshAfter( 7 , TimeUnit.DAYS );
+		result.setPrefixCaching( 24 , 48 );
+		result.setWriteAheadLog( new File("geolocation.cache.log") , 4*1024*1024 );
+		result.setLoadTimeout( 250 , TimeUnit.MILLISECONDS );
+		result.loadAsync();
+		return result;
 	}
 	
 	private List<StringSubject> getSpammers() 
@@ -387,39 +406,74 @@ public class Main {
         final ThrowingConsumer<List<String>> hopsConsumer = hops -> 
         {
             final List<StringSubject> subjects = hops.stream().map( StringSubject::new ).collect(Collectors.toList());
-            long time = -System.currentTimeMillis();
-            final List<GeoLocation<StringSubject>> locations = locator.locate( subjects, Main.this::onProgress );
-            time += System.currentTimeMillis();
-
-            System.out.println("Locating hops for "+destinationIP+" returned "+locations.size()+" valid locations ( time: "+time+" ms)");
-            System.out.flush();    
+            final long start = System.currentTimeMillis();
             
-            /*
-             * Weed-out invalid/unknown locations.
-             */
-            GeoLocation<StringSubject> previous = null;
-            for (Iterator<GeoLocation<StringSubject>> it = locations.iterator(); it.hasNext();) 
+            onProgress( 0 , subjects.size() );
+            final List<CompletableFuture<GeoLocation<StringSubject>>> futures = locator.locateAllAsync( subjects );
+            final AtomicInteger completed = new AtomicInteger();
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            for ( CompletableFuture<GeoLocation<StringSubject>> future : futures ) 
             {
-                final GeoLocation<StringSubject> location = it.next();
-                if ( ! location.hasValidCoordinates() ) 
+                future.whenComplete( (location,error) -> 
                 {
-                    it.remove();
-                    System.err.println("Ignoring invalid location for "+location);
-                } 
-                else if ( previous != null && previous.coordinate().equals( location.coordinate() ) ) 
+                    synchronized( completed ) // report progress in order 
+                    {
+                        if ( ! cancelled.get() && ! onProgress( completed.incrementAndGet() , subjects.size() ) ) 
+                        {
+                            System.err.println("*** Operation cancelled by user ***");
+                            cancelled.set( true );
+                            futures.forEach( f -> f.cancel( false ) );
+                        }
+                    }
+                });
+            }
+            
+            CompletableFuture.allOf( futures.toArray( new CompletableFuture<?>[ futures.size() ] ) ).whenComplete( (ignored,error) -> 
+            {
+                if ( error != null ) 
                 {
-                    it.remove();
-                    System.err.println("Ignoring duplicate location for "+location+" <-> "+previous);
-                } else {
-                    previous = location;
+                    if ( cancelled.get() ) {
+                        runOnEDT( () -> onSuccess.accept( new ArrayList<>() ) );
+                    } else {
+                        onFailure.accept( error instanceof CompletionException && error.getCause() != null ? error.getCause() : error );
+                    }
+                    return;
                 }
-            }
-            runOnEDT( () -> onSuccess.accept( locations ) );
+                final List<GeoLocation<StringSubject>> locations = futures.stream().map( CompletableFuture::join ).collect( Collectors.toCollection( ArrayList::new ) ); // onLocationsFound() modifies the list
+                System.out.println("Locating hops for "+destinationIP+" returned "+locations.size()+" locations ( time: "+(System.currentTimeMillis()-start)+" ms)");
+                System.out.flush();    
+                onLocationsFound( locations , onSuccess );
+            });
         };
         
         doWith( hopsSupplier , hopsConsumer , onFailure );
     }
     
+    private void onLocationsFound(List<GeoLocation<StringSubject>> locations,Consumer<List<GeoLocation<StringSubject>>> onSuccess) 
+    {
+        /*
+         * Weed-out invalid/unknown locations.
+         */
+        GeoLocation<StringSubject> previous = null;
+        for (Iterator<GeoLocation<StringSubject>> it = locations.iterator(); it.hasNext();) 
+        {
+            final GeoLocation<StringSubject> location = it.next();
+            if ( ! location.hasValidCoordinates() ) 
+            {
+                it.remove();
+                System.err.println("Ignoring invalid location for "+location);
+            } 
+            else if ( previous != null && previous.coordinate().equals( location.coordinate() ) ) 
+            {
+                it.remove();
+                System.err.println("Ignoring duplicate location for "+location+" <-> "+previous);
+            } else {
+                previous = location;
+            }
+        }
+        runOnEDT( () -> onSuccess.accept( locations ) );
+    }
+    
     protected <A> void doWith(ThrowingSupplier<A> supp, ThrowingConsumer<A> consumer, Consumer<Throwable> onFailure) {
         
         async( () -> 
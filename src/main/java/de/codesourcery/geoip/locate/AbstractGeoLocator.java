@@ -17,17 +17,57 @@ package de.codesourcery.geoip.locate;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.ISubject;
 
 public abstract class AbstractGeoLocator<SUBJECT extends ISubject<?>> implements IGeoLocator<SUBJECT> {
 
+    private static final AtomicInteger THREAD_ID = new AtomicInteger(0);
+
+    private volatile int maxConcurrency = 1;
+
+    /**
+     * Sets the maximum number of subjects that {@link #locate(Collection, IProgressListener)}
+     * will try to resolve concurrently.
+     *
+     * <p>Values &gt; 1 enable parallel batch lookups, each subject is still resolved
+     * through {@link #locate(ISubject)}. Results are always returned in input order.</p>
+     *
+     * @param maxConcurrency maximum number of concurrent lookups, must be &gt;= 1
+     */
+    public void setMaxConcurrency(int maxConcurrency)
+    {
+        if ( maxConcurrency < 1 ) {
+            throw new IllegalArgumentException("maxConcurrency must be >= 1");
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
     @Override
     public final List<GeoLocation<SUBJECT>> locate(Collection<SUBJECT> addresses,de.codesourcery.geoip.locate.IGeoLocator.IProgressListener progressListener) throws Exception 
     {
+        final int concurrency = Math.min( maxConcurrency , addresses.size() );
+        if ( concurrency > 1 ) {
+            return locateParallel( addresses , progressListener , concurrency );
+        }
+
         final List<GeoLocation<SUBJECT>> result = new ArrayList<>();
         progressListener.progress( 0 , addresses.size() );
         int itemCount = 1;
@@ -50,6 +90,90 @@ public abstract class AbstractGeoLocator<SUBJECT extends ISubject<?>> implements
         return result;        
     }
 
+    private List<GeoLocation<SUBJECT>> locateParallel(Collection<SUBJECT> addresses,IProgressListener progressListener,int concurrency) throws Exception
+    {
+        final int size = addresses.size();
+
+        // slots are only ever written by a single task each, Future#get() makes them visible to us
+        final List<GeoLocation<SUBJECT>> result = new ArrayList<>( Collections.nCopies( size , null ) );
+
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>( BatchExecutor.INSTANCE );
+        final List<Future<Integer>> futures = new ArrayList<>( size );
+        final Iterator<SUBJECT> remaining = addresses.iterator();
+        try
+        {
+            progressListener.progress( 0 , size );
+
+            // the executor is shared by all instances, keep at most 'concurrency' tasks of this batch in flight
+            while ( futures.size() < concurrency ) {
+                futures.add( submit( completionService , remaining.next() , futures.size() , result ) );
+            }
+
+            for ( int itemCount = 1 ; itemCount <= size ; itemCount++ )
+            {
+                try {
+                    completionService.take().get();
+                }
+                catch(ExecutionException e)
+                {
+                    if ( e.getCause() instanceof Exception ) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+
+                if ( itemCount < size && ! progressListener.progress( itemCount , size ) )
+                {
+                    System.err.println("*** Operation cancelled by user ***");
+                    progressListener.progress( size , size );
+                    return new ArrayList<>();
+                }
+                if ( remaining.hasNext() ) {
+                    futures.add( submit( completionService , remaining.next() , futures.size() , result ) );
+                }
+            }
+        }
+        finally
+        {
+            // no-op for tasks that already finished, interrupts the rest on cancel/failure
+            futures.forEach( f -> f.cancel( true ) );
+        }
+        progressListener.progress( size , size );
+        return result;
+    }
+
+    private Future<Integer> submit(CompletionService<Integer> completionService,SUBJECT subject,int slot,List<GeoLocation<SUBJECT>> result) 
+    {
+        return completionService.submit( () ->
+        {
+            result.set( slot , locate( subject ) );
+            return slot;
+        });
+    }
+
+    /**
+     * Threads running parallel batch lookups, shared by all locators and created on first use.
+     */
+    private static final class BatchExecutor 
+    {
+        // upper bound for threads running batch lookups, regardless of how many batches are in progress
+        private static final int MAX_THREADS = 32;
+
+        public static final ExecutorService INSTANCE;
+
+        static 
+        {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor( MAX_THREADS , MAX_THREADS , 30 , TimeUnit.SECONDS , new LinkedBlockingQueue<>() , r ->
+            {
+                final Thread t = new Thread( r , "geolocator-batch-"+THREAD_ID.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            });
+            pool.allowCoreThreadTimeOut( true );
+            INSTANCE = pool;
+        }
+    }
+
     @Override
     public void flushCaches() {
     }
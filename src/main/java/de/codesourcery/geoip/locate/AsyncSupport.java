@@ -0,0 +1,169 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers for the asynchronous {@link IGeoLocator} API.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class AsyncSupport
+{
+	// upper bound for threads running blocking lookups on behalf of IGeoLocator#locateAsync()
+	private static final int MAX_BLOCKING_THREADS = 32;
+
+	private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+	private static final Executor BLOCKING_EXECUTOR;
+
+	static
+	{
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor( MAX_BLOCKING_THREADS , MAX_BLOCKING_THREADS , 30 , TimeUnit.SECONDS , new LinkedBlockingQueue<>() , r ->
+		{
+			final Thread t = new Thread( r , "geolocator-async-"+THREAD_ID.incrementAndGet() );
+			t.setDaemon( true );
+			return t;
+		});
+		pool.allowCoreThreadTimeOut( true );
+		BLOCKING_EXECUTOR = pool;
+	}
+
+	interface ThrowingSupplier<T>
+	{
+		public T get() throws Exception;
+	}
+
+	private AsyncSupport() {
+	}
+
+	/**
+	 * Runs a blocking operation on a bounded pool of threads shared by all locators.
+	 *
+	 * <p>Excess operations are queued, so any number of them may be in flight without
+	 * creating more than a fixed number of threads.</p>
+	 *
+	 * <p>Cancelling the returned future interrupts the operation (or removes it from the queue 
+	 * if it has not started yet), so abandoned lookups don't keep occupying a thread.</p>
+	 *
+	 * @param supplier
+	 * @return
+	 */
+	public static <T> CompletableFuture<T> supplyBlocking(ThrowingSupplier<T> supplier) 
+	{
+		final InterruptibleFuture<T> result = new InterruptibleFuture<>();
+		result.task = new FutureTask<>( () -> 
+		{
+			try {
+				result.complete( supplier.get() );
+			} catch(Exception e) {
+				result.completeExceptionally( e );
+			}
+			return null;
+		});
+		try {
+			BLOCKING_EXECUTOR.execute( result.task );
+		} catch(RuntimeException e) { // rejected
+			result.completeExceptionally( e );
+		}
+		return result;
+	}
+
+	/**
+	 * Future that interrupts the task computing its value when cancelled.
+	 */
+	private static final class InterruptibleFuture<T> extends CompletableFuture<T>
+	{
+		public volatile FutureTask<?> task;
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			final boolean result = super.cancel( mayInterruptIfRunning );
+			final FutureTask<?> toCancel = task;
+			if ( result && toCancel != null ) {
+				toCancel.cancel( true );
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Returns the executor used by {@link #supplyBlocking(ThrowingSupplier)}.
+	 * 
+	 * @return
+	 */
+	public static Executor blockingExecutor() {
+		return BLOCKING_EXECUTOR;
+	}
+	
+	public static <T> CompletableFuture<T> supplyAsync(ThrowingSupplier<T> supplier,Executor executor)
+	{
+		return CompletableFuture.supplyAsync( () ->
+		{
+			try {
+				return supplier.get();
+			} catch(Exception e) {
+				throw new CompletionException( e );
+			}
+		} , executor );
+	}
+
+	/**
+	 * Runs a (fast, non-blocking) operation in the calling thread.
+	 *
+	 * @param supplier
+	 * @return completed future
+	 */
+	public static <T> CompletableFuture<T> supplyNow(ThrowingSupplier<T> supplier)
+	{
+		try {
+			return CompletableFuture.completedFuture( supplier.get() );
+		} catch(Exception e) {
+			return failed( e );
+		}
+	}
+
+	public static <T> CompletableFuture<T> failed(Throwable t)
+	{
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		result.completeExceptionally( t );
+		return result;
+	}
+
+	/**
+	 * Returns the actual cause of a failed future.
+	 *
+	 * @param t
+	 * @return
+	 */
+	public static Throwable unwrap(Throwable t)
+	{
+		while ( ( t instanceof CompletionException || t instanceof ExecutionException ) && t.getCause() != null ) {
+			t = t.getCause();
+		}
+		return t;
+	}
+}
@@ -25,17 +25,40 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.json.JSONWriter;
 
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.ISubject;
+import de.codesourcery.geoip.locate.cache.CacheEntry;
+import de.codesourcery.geoip.locate.cache.CacheFileReader;
+import de.codesourcery.geoip.locate.cache.CacheStatistics;
+import de.codesourcery.geoip.locate.cache.IEvictionPolicy;
+import de.codesourcery.geoip.locate.cache.LRUEvictionPolicy;
+import de.codesourcery.geoip.locate.cache.MemoryMappedCacheStore;
+import de.codesourcery.geoip.locate.cache.PrefixTable;
+import de.codesourcery.geoip.locate.cache.TinyLFUEvictionPolicy;
+import de.codesourcery.geoip.locate.cache.WriteAheadLog;
+import de.codesourcery.geoip.net.IPAddress;
+import de.codesourcery.geoip.net.NetworkPrefix;
 
 /**
  * A caching wrapper from {@link IGeoLocator} instances.
@@ -44,26 +67,111 @@ import de.codesourcery.geoip.ISubject;
  * wrapped <code>IGeoLocator</code> and will persist this data as a JSON string to a file
  * on the local filesystem when {@link #dispose()} is called.</p>
  * 
+ * <p>The cache is unbounded by default, use {@link #setMaximumSize(long)} or {@link #setMaximumWeight(long, ToIntFunction)}
+ * to limit it. Entries to discard are chosen by an {@link IEvictionPolicy}, {@link LRUEvictionPolicy} unless 
+ * configured otherwise.</p>
+ * 
+ * <p>Entries never expire by default. {@link #setTimeToLive(long, TimeUnit)} and {@link #setNegativeTimeToLive(long, TimeUnit)}
+ * configure how long valid and invalid ({@link GeoLocation#hasValidCoordinates()} == <code>false</code>) results are kept,
+ * expired entries are refreshed from the delegate on their next access.</p>
+ * 
+ * <p>If {@link #setRefreshAfter(long, TimeUnit) a refresh interval} is configured, entries older than this interval (but not 
+ * yet expired) are returned immediately and reloaded in the background.</p>
+ * 
+ * <p>When a {@link #setWriteAheadLog(File, long) write-ahead log} is configured, new entries are appended to a binary log file as 
+ * soon as they're added and {@link #dispose()} only needs to flush this log. The JSON file then serves as a snapshot that 
+ * gets rewritten in the background whenever the log grows beyond a given size.</p>
+ * 
+ * <p>Alternatively, a {@link #setMemoryMappedStore(File) memory-mapped store} can be used instead of the JSON file. Nothing is loaded
+ * on startup in this case, lookups missing the in-memory cache are served straight from the memory-mapped file.</p>
+ * 
+ * <p>With {@link #setPrefixCaching(int, int) prefix caching} enabled, valid locations are also associated with the network
+ * block they belong to and lookups for other addresses in the same block are answered from the cache.</p>
+ * 
+ * <p>Cached locations are {@link GeoLocation#freeze() frozen} and returned without copying them.</p>
+ * 
+ * <p>Persisted entries are loaded by the first lookup unless {@link #loadAsync()} has been called to load them in the background.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  *
  * @param <SUBJECT>
  */
 public class CachingGeoLocator<SUBJECT extends ISubject<?>> extends AbstractGeoLocator<SUBJECT> {
 
+	// how long dispose() waits for background refreshes and pending writes to finish
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
 	private final IGeoLocator<SUBJECT> delegate;
 	
-	private final File CACHE_FILE = new File("geolocation.cache");
+	private volatile File cacheFile = new File("geolocation.cache");
 
 	private final Object CACHE_LOCK = new Object();
 	
-	//@GuardedBy( CACHE_LOCK )	
-	private Map<SUBJECT,GeoLocation<SUBJECT>> cache;
-
-	//@GuardedBy( CACHE_LOCK )	
-	private boolean cacheLoaded = false;
+	/*
+	 * Lock used to get a consistent view of the cache for operations
+	 * that work on the whole map. Single-entry updates acquire the (shared) read lock, 
+	 * operations like dispose() and flushCaches() acquire the (exclusive) write lock.
+	 * 
+	 * Cache lookups never acquire this lock.
+	 */
+	private final ReentrantReadWriteLock SNAPSHOT_LOCK = new ReentrantReadWriteLock();
+	
+	// set by dispose() while holding the SNAPSHOT_LOCK write lock, no more persisting after that 
+	private volatile boolean disposed;
+	
+	// set right before the log / store get closed
+	private volatile boolean closed;
+	
+	// writes queued by cacheInsertPersistLater() that have not finished yet, dispose() waits for them 
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+	
+	// NULL until the cache has been loaded from disk
+	private volatile ConcurrentHashMap<SUBJECT,CacheEntry<SUBJECT>> cache;
+	
+	//@GuardedBy( CACHE_LOCK )
+	private CompletableFuture<ConcurrentHashMap<SUBJECT,CacheEntry<SUBJECT>>> loadingFuture;
+	
+	private volatile long loadTimeoutMillis = Long.MAX_VALUE;
 	
 	private final Constructor<SUBJECT> constructor;
 	
+	// lookups currently being performed by the delegate, shared by all threads missing on the same subject
+	private final ConcurrentHashMap<SUBJECT,CompletableFuture<GeoLocation<SUBJECT>>> inFlight = new ConcurrentHashMap<>();
+	
+	private final CacheStatistics statistics = new CacheStatistics();
+	
+	private volatile IEvictionPolicy<SUBJECT> evictionPolicy = new LRUEvictionPolicy<>();
+	private volatile ToIntFunction<GeoLocation<SUBJECT>> weigher = location -> 1;
+	private volatile long maximumWeight = Long.MAX_VALUE;
+	
+	// sum of weights of all entries currently in the cache
+	private final AtomicLong totalWeight = new AtomicLong();
+	
+	private volatile long timeToLiveMillis = Long.MAX_VALUE;
+	private volatile long negativeTimeToLiveMillis = Long.MAX_VALUE;
+	private volatile long refreshAfterMillis = Long.MAX_VALUE;
+	
+	private volatile WriteAheadLog<SUBJECT> writeAheadLog;
+	private volatile long compactionThreshold;
+	private final AtomicBoolean compactionRunning = new AtomicBoolean(false);
+	
+	private volatile MemoryMappedCacheStore<SUBJECT> store;
+	
+	private volatile boolean prefixCaching;
+	private volatile int ipv4PrefixLength;
+	private volatile int ipv6PrefixLength;
+	
+	// valid cache entries by network, only used when prefix caching is enabled
+	private final PrefixTable<CacheEntry<SUBJECT>> prefixes = new PrefixTable<>();
+	
+	private final Object REFRESH_EXECUTOR_LOCK = new Object();
+	
+	//@GuardedBy( REFRESH_EXECUTOR_LOCK )
+	private Executor refreshExecutor;
+	
+	//@GuardedBy( REFRESH_EXECUTOR_LOCK )
+	private ExecutorService defaultRefreshExecutor;
+	
 	public CachingGeoLocator(IGeoLocator<SUBJECT> delegate,Class<SUBJECT> clazz) {
 		this.delegate = delegate;
 		try {
@@ -74,132 +182,1211 @@ public class CachingGeoLocator<SUBJECT extends ISubject<?>> extends AbstractGeoL
 		}
 	}
 	
+	/**
+	 * Sets the file used to persist the cache.
+	 * 
+	 * <p>Must be called before the first lookup.</p>
+	 * 
+	 * @param file
+	 */
+	public void setCacheFile(File file) 
+	{
+		if ( file == null ) {
+			throw new IllegalArgumentException("file must not be NULL");
+		}
+		this.cacheFile = file;
+	}
+	
+	/**
+	 * Enables persisting new cache entries to an append-only log as soon as they're inserted.
+	 * 
+	 * <p>Once the log grows beyond <code>compactionThreshold</code> bytes, the cache file
+	 * is rewritten in the background and the log discarded.</p>
+	 * 
+	 * <p>Must be called before the first lookup.</p>
+	 * 
+	 * @param logFile
+	 * @param compactionThreshold log size (in bytes) that triggers compaction
+	 */
+	public void setWriteAheadLog(File logFile,long compactionThreshold) 
+	{
+		if ( compactionThreshold <= 0 ) {
+			throw new IllegalArgumentException("Compaction threshold must be > 0");
+		}
+		if ( store != null ) {
+			throw new IllegalStateException("Cannot use a write-ahead log together with a memory-mapped store");
+		}
+		this.compactionThreshold = compactionThreshold;
+		this.writeAheadLog = new WriteAheadLog<>( logFile , constructor );
+	}
+	
+	/**
+	 * Persist the cache to a memory-mapped file instead of the JSON cache file.
+	 * 
+	 * <p>The in-memory cache starts out empty and lookups that miss it are answered from the memory-mapped file 
+	 * before querying the delegate, so startup time no longer depends on the number of persisted entries and the 
+	 * persisted data may exceed the available heap. Use {@link #setMaximumSize(long)} to bound the in-memory part.</p>
+	 * 
+	 * <p>Must be called before the first lookup.</p>
+	 * 
+	 * @param file
+	 * @see MemoryMappedCacheStore
+	 */
+	public void setMemoryMappedStore(File file) 
+	{
+		if ( writeAheadLog != null ) {
+			throw new IllegalStateException("Cannot use a memory-mapped store together with a write-ahead log");
+		}
+		this.store = new MemoryMappedCacheStore<>( file , constructor );
+	}
+	
+	/**
+	 * Limits the number of cache entries.
+	 * 
+	 * <p>Must be called before the first lookup.</p>
+	 *  
+	 * @param maximumSize
+	 * @see #setEvictionPolicy(IEvictionPolicy)
+	 */
+	public void setMaximumSize(long maximumSize) 
+	{
+		setMaximumWeight( maximumSize , location -> 1 );
+	}
+	
+	/**
+	 * Limits the total weight of all cache entries.
+	 * 
+	 * <p>Must be called before the first lookup.</p>
+	 *  
+	 * @param maximumWeight
+	 * @param weigher function used to calculate the weight of a cache entry, must return values &gt;= 0
+	 * @see #setEvictionPolicy(IEvictionPolicy)
+	 */
+	public void setMaximumWeight(long maximumWeight,ToIntFunction<GeoLocation<SUBJECT>> weigher) 
+	{
+		if ( maximumWeight < 0 ) {
+			throw new IllegalArgumentException("Maximum weight must be >= 0");
+		}
+		if ( weigher == null ) {
+			throw new IllegalArgumentException("weigher must not be NULL");
+		}
+		this.weigher = weigher;
+		this.maximumWeight = maximumWeight;
+	}
+	
+	/**
+	 * Sets the policy used to select entries to discard when the cache exceeds its maximum size.
+	 * 
+	 * <p>Must be called before the first lookup.</p>
+	 * 
+	 * @param policy
+	 * @see LRUEvictionPolicy
+	 * @see TinyLFUEvictionPolicy
+	 */
+	public void setEvictionPolicy(IEvictionPolicy<SUBJECT> policy) 
+	{
+		if ( policy == null ) {
+			throw new IllegalArgumentException("policy must not be NULL");
+		}
+		this.evictionPolicy = policy;
+	}
+	
+	/**
+	 * Enables network-prefix aware caching.
+	 * 
+	 * <p>Valid locations are associated with the network reported by the delegate via {@link GeoLocation#KEY_NETWORK} or, 
+	 * if the delegate doesn't report one, with the network of the given prefix length containing the address. 
+	 * Lookups for IP address literals missing the cache are then answered with the location cached for the 
+	 * most specific network containing the address.</p>
+	 * 
+	 * <p>Must be called before the first lookup.</p>
+	 * 
+	 * @param ipv4PrefixLength default prefix length for IPv4 addresses (0...32)
+	 * @param ipv6PrefixLength default prefix length for IPv6 addresses (0...128)
+	 */
+	public void setPrefixCaching(int ipv4PrefixLength,int ipv6PrefixLength) 
+	{
+		if ( ipv4PrefixLength < 0 || ipv4PrefixLength > 32 ) {
+			throw new IllegalArgumentException("IPv4 prefix length must be 0...32");
+		}
+		if ( ipv6PrefixLength < 0 || ipv6PrefixLength > 128 ) {
+			throw new IllegalArgumentException("IPv6 prefix length must be 0...128");
+		}
+		this.ipv4PrefixLength = ipv4PrefixLength;
+		this.ipv6PrefixLength = ipv6PrefixLength;
+		this.prefixCaching = true;
+	}
+	
+	/**
+	 * Sets how long valid locations are kept in the cache.
+	 * 
+	 * @param duration duration, {@link Long#MAX_VALUE} means 'forever'
+	 * @param unit
+	 * @see #setNegativeTimeToLive(long, TimeUnit)
+	 */
+	public void setTimeToLive(long duration,TimeUnit unit) 
+	{
+		this.timeToLiveMillis = toMillis( duration , unit );
+	}
+	
+	/**
+	 * Sets how long invalid locations (subjects the delegate could not locate) are kept in the cache.
+	 * 
+	 * @param duration duration, {@link Long#MAX_VALUE} means 'forever'
+	 * @param unit
+	 * @see #setTimeToLive(long, TimeUnit)
+	 */
+	public void setNegativeTimeToLive(long duration,TimeUnit unit) 
+	{
+		this.negativeTimeToLiveMillis = toMillis( duration , unit );
+	}
+	
+	/**
+	 * Sets the age after which entries get reloaded in the background.
+	 * 
+	 * <p>Lookups hitting an entry older than this (but not yet {@link #setTimeToLive(long, TimeUnit) expired}) 
+	 * return the cached location right away and trigger a reload on the {@link #setRefreshExecutor(Executor) refresh executor}. 
+	 * There's at most one reload in progress for any given subject.</p>
+	 * 
+	 * @param duration duration, {@link Long#MAX_VALUE} disables background refreshing
+	 * @param unit
+	 */
+	public void setRefreshAfter(long duration,TimeUnit unit) 
+	{
+		this.refreshAfterMillis = toMillis( duration , unit );
+	}
+	
+	/**
+	 * Sets the executor used to reload stale entries.
+	 * 
+	 * <p>If no executor is set, a small pool of daemon threads will be created on demand 
+	 * and shut down by {@link #dispose()}.</p>
+	 * 
+	 * @param executor
+	 * @see #setRefreshAfter(long, TimeUnit)
+	 */
+	public void setRefreshExecutor(Executor executor) 
+	{
+		if ( executor == null ) {
+			throw new IllegalArgumentException("executor must not be NULL");
+		}
+		synchronized( REFRESH_EXECUTOR_LOCK ) {
+			this.refreshExecutor = executor;
+		}
+	}
+	
+	private Executor getRefreshExecutor() 
+	{
+		synchronized( REFRESH_EXECUTOR_LOCK ) 
+		{
+			if ( refreshExecutor == null ) 
+			{
+				final AtomicInteger threadId = new AtomicInteger();
+				defaultRefreshExecutor = Executors.newFixedThreadPool( 2 , r -> 
+				{
+					final Thread t = new Thread( r , "cache-refresh-"+threadId.incrementAndGet() );
+					t.setDaemon( true );
+					return t;
+				});
+				refreshExecutor = defaultRefreshExecutor;
+			}
+			return refreshExecutor;
+		}
+	}
+	
+	private static long toMillis(long duration,TimeUnit unit) 
+	{
+		if ( duration <= 0 ) {
+			throw new IllegalArgumentException("Duration must be > 0");
+		}
+		return duration == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toMillis( duration );
+	}
+	
+	/**
+	 * Returns the current time in milliseconds since the epoch.
+	 *  
+	 * @return
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+	
+	private boolean isExpired(CacheEntry<SUBJECT> entry,long now) 
+	{
+		final long ttl = entry.location().hasValidCoordinates() ? timeToLiveMillis : negativeTimeToLiveMillis;
+		return entry.isOlderThan( now , ttl );
+	}
+	
+	/**
+	 * Returns cumulative hit/miss/eviction counts.
+	 * 
+	 * @return
+	 */
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * Returns the number of entries currently held in memory.
+	 * 
+	 * @return
+	 */
+	public int size() 
+	{
+		final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> current = cache;
+		return current == null ? 0 : current.size();
+	}
+	
+	/**
+	 * Look up a subject.
+	 * 
+	 * @param key
+	 * @return location or <code>null</code> if the cache has no (or only an expired) entry for this subject.
+	 */
 	private GeoLocation<SUBJECT> cacheLookup(SUBJECT key) 
 	{
-		synchronized (CACHE_LOCK) 
+		final CacheEntry<SUBJECT> result = getCache().get( key );
+		if ( result == null || isExpired( result , currentTimeMillis() ) ) {
+			return null;
+		}
+		return result.location();
+	}
+	
+	/**
+	 * Starts loading the persisted cache on a background thread.
+	 * 
+	 * <p>Lookups issued while loading is still in progress wait at most the configured 
+	 * {@link #setLoadTimeout(long, TimeUnit) load timeout} and then get answered by the delegate directly.
+	 * Calling this method more than once (or after loading already finished) has no effect besides 
+	 * returning the same future.</p>
+	 * 
+	 * <p>Call this method after the cache has been configured, otherwise the cache is loaded lazily 
+	 * by the first lookup.</p>
+	 * 
+	 * @return future that completes once the cache has been loaded
+	 */
+	public CompletableFuture<Void> loadAsync() 
+	{
+		final CompletableFuture<ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>>> future;
+		boolean startLoading = false;
+		synchronized ( CACHE_LOCK ) 
 		{
-			if ( cacheLoaded ) {
-				GeoLocation<SUBJECT> result = cache.get( key );
-				return result == null ? null : result.createShallowCopy();
+			if ( loadingFuture == null ) 
+			{
+				loadingFuture = new CompletableFuture<>();
+				startLoading = true;
 			}
+			future = loadingFuture;
+		}
+		
+		if ( startLoading ) 
+		{
+			final Thread t = new Thread( () -> runLoad( future ) , "cache-loader" );
+			t.setDaemon( true );
+			t.start();
 		}
+		return future.thenApply( map -> null );
+	}
+	
+	/**
+	 * Sets how long lookups wait for the cache to be loaded by {@link #loadAsync()} 
+	 * before bypassing it.
+	 * 
+	 * <p>Lookups bypassing the cache are forwarded to the delegate and their results get 
+	 * added to the cache as soon as loading has finished.</p>
+	 * 
+	 * @param duration duration, 0 means 'do not wait at all' and {@link Long#MAX_VALUE} means 'wait forever' (default)
+	 * @param unit
+	 */
+	public void setLoadTimeout(long duration,TimeUnit unit) 
+	{
+		this.loadTimeoutMillis = duration == 0 ? 0 : toMillis( duration , unit );
+	}
 	
+	private ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> getCache() 
+	{
+		final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> existing = cache;
+		if ( existing != null ) {
+			return existing;
+		}
+		
+		final CompletableFuture<ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>>> future;
+		boolean load = false;
+		synchronized ( CACHE_LOCK ) 
+		{
+			if ( cache != null ) {
+				return cache;
+			}
+			if ( loadingFuture == null ) 
+			{
+				loadingFuture = new CompletableFuture<>();
+				load = true;
+			}
+			future = loadingFuture;
+		}
+		
+		if ( load ) {
+			runLoad( future ); // lazy loading, the first caller does the work
+		}
+		return future.join();
+	}
+	
+	/**
+	 * Returns the cache, waiting at most the configured load timeout 
+	 * for background loading to finish.
+	 * 
+	 * @return cache or <code>null</code> if loading is still in progress
+	 */
+	private ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> getCacheIfLoaded() 
+	{
+		final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> existing = cache;
+		if ( existing != null ) {
+			return existing;
+		}
+		
+		final CompletableFuture<ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>>> future;
+		synchronized ( CACHE_LOCK ) {
+			future = loadingFuture;
+		}
+		final long timeout = loadTimeoutMillis;
+		if ( future == null || timeout == Long.MAX_VALUE ) {
+			return getCache();
+		}
+		
+		try {
+			return future.get( timeout , TimeUnit.MILLISECONDS );
+		} 
+		catch (TimeoutException e) {
+			return null;
+		} 
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		} 
+		catch (ExecutionException e) {
+			throw new RuntimeException( e.getCause() ); // never happens, runLoad() always completes normally
+		}
+	}
+	
+	private void runLoad(CompletableFuture<ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>>> future) 
+	{
 		long time = -System.currentTimeMillis();
-		Map<SUBJECT, GeoLocation<SUBJECT>> loaded = null;
+		ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> loaded = null;
 		try {
 			loaded = loadCache();
 		} catch (Exception e) {
 			e.printStackTrace();
-			loaded = new HashMap<>();
+			loaded = new ConcurrentHashMap<>();
 		}
 		time += System.currentTimeMillis();
 		System.out.println("Loaded "+loaded.size()+" cache entries from disk ("+time+" ms)");
 		synchronized ( CACHE_LOCK ) 
 		{
-			if ( ! cacheLoaded ) 
+			// discard the result if flushCaches() got called while we were loading
+			if ( loadingFuture == future ) 
 			{
+				for ( SUBJECT key : loaded.keySet() ) 
+				{
+					final CacheEntry<SUBJECT> entry = loaded.get( key );
+					if ( entry != null ) 
+					{
+						totalWeight.addAndGet( weigher.applyAsInt( entry.location() ) );
+						evictionPolicy.recordInsertion( key );
+						registerPrefix( key , entry );
+						evictIfNecessary( loaded , key );
+					}
+				}
 				cache = loaded;
-				cacheLoaded = true;
 			}
 		}
-		return cacheLookup(key);
+		future.complete( loaded );
 	}
 	
-	private Map<SUBJECT, GeoLocation<SUBJECT>> loadCache() throws FileNotFoundException, IOException 
+	/**
+	 * Discards entries until the cache is no longer exceeding its maximum weight.
+	 * 
+	 * @param map
+	 * @param candidate the key that was just added to the cache
+	 */
+	private void evictIfNecessary(ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> map,SUBJECT candidate) 
 	{
-		final Map<SUBJECT, GeoLocation<SUBJECT>> result = new HashMap<>();
-		if ( ! cacheFileExists() ) {
+		while ( totalWeight.get() > maximumWeight ) 
+		{
+			final SUBJECT victim = evictionPolicy.selectVictim( candidate );
+			if ( victim == null ) {
+				break;
+			}
+			final CacheEntry<SUBJECT> removed = map.remove( victim );
+			evictionPolicy.recordRemoval( victim );
+			if ( removed != null ) 
+			{
+				totalWeight.addAndGet( -weigher.applyAsInt( removed.location() ) );
+				unregisterPrefix( victim , removed );
+				statistics.recordEviction();
+			}
+		}
+	}
+	
+	private ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> loadCache() throws FileNotFoundException, IOException 
+	{
+		final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> result = new ConcurrentHashMap<>();
+		
+		final MemoryMappedCacheStore<SUBJECT> mmStore = store;
+		if ( mmStore != null ) 
+		{
+			mmStore.open();
+			System.out.println("Opened cache store "+mmStore+" ("+mmStore.size()+" entries)");
 			return result;
 		}
 		
-		try ( InputStream in = createReader() ) 
+		final long now = currentTimeMillis();
+		if ( cacheFileExists() ) 
 		{
-			JSONArray jsonArray = new JSONArray( new JSONTokener( in ) );
-			int length = jsonArray.length();
-			for ( int i = 0 ; i < length ; i++) 
+			try ( InputStream in = createReader() ) 
 			{
-				final JSONObject obj = jsonArray.getJSONObject( i );
-				final GeoLocation<SUBJECT> location = GeoLocation.fromJSON( obj , constructor );
-				result.put( location.subject() , location );
+				new CacheFileReader<>( constructor , now ).read( in , entry -> 
+				{
+					if ( ! isExpired( entry , now ) ) {
+						result.put( entry.subject() , entry );
+					}
+				});
 			}
 		}
+		
+		final WriteAheadLog<SUBJECT> log = writeAheadLog;
+		if ( log != null ) 
+		{
+			log.close(); // no-op unless we're re-loading after flushCaches()
+			log.open( entry -> 
+			{
+				if ( isExpired( entry , now ) ) {
+					result.remove( entry.subject() );
+				} else {
+					result.put( entry.subject() , entry );
+				}
+			});
+		}
 		return result;
 	}
 	
 	protected boolean cacheFileExists() {
-		return CACHE_FILE.exists();
+		return cacheFile.exists();
 	}
 	
 	@Override
 	public GeoLocation<SUBJECT> locate(SUBJECT address) throws Exception {
 		
-		GeoLocation<SUBJECT> result = cacheLookup( address );
-		if ( result == null ) {
-		    System.out.println("CACHE-MISS: >"+address+"<");
-			result = delegate.locate( address );
-			synchronized( CACHE_FILE ) 
+		final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> current = getCacheIfLoaded();
+		if ( current == null ) {
+			return locateWhileLoading( address );
+		}
+		final GeoLocation<SUBJECT> cached = lookupLoaded( current , address );
+		if ( cached != null ) {
+			return cached;
+		}
+		return loadSingleFlight( address , () -> 
+		{
+			// another thread might've finished loading between our cache miss and registering the future 
+			GeoLocation<SUBJECT> result = cacheLookup( address );
+			if ( result == null ) {
+				result = storeLookup( address );
+			}
+			if ( result != null ) 
 			{
-				GeoLocation<SUBJECT> existing = cache.get( address );
-				if ( existing == null ) {
-					cache.put( address , result.createShallowCopy() );
-					System.out.println("CACHE-UPDATE: "+existing+" ( cache size: "+cache.size()+")" );
-				} else {
-					result = existing;
+				statistics.recordHit();
+				return result;
+			}
+			recordMiss( address );
+			return cacheInsert( address , delegate.locate( address ) );
+		});
+	}
+	
+	/**
+	 * Asynchronous lookup that never blocks the calling thread.
+	 * 
+	 * <p>Cache hits complete immediately, misses are forwarded to the delegate's {@link IGeoLocator#locateAsync(ISubject)}
+	 * (sharing in-flight lookups with concurrent callers). If the cache has not been loaded yet, lookups 
+	 * either wait for {@link #loadAsync() loading} to finish or - when a {@link #setLoadTimeout(long, TimeUnit) load timeout}
+	 * has been set - go to the delegate right away.</p>
+	 */
+	@Override
+	public CompletableFuture<GeoLocation<SUBJECT>> locateAsync(SUBJECT address) 
+	{
+		final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> current = cache;
+		if ( current == null ) 
+		{
+			final CompletableFuture<Void> loaded = loadAsync();
+			if ( loadTimeoutMillis == Long.MAX_VALUE || loaded.isDone() ) {
+				return loaded.thenCompose( v -> locateAsync( address ) );
+			}
+			return singleFlightAsync( address , () -> 
+			{
+				statistics.recordMiss();
+				return delegate.locateAsync( address ).thenApply( location -> 
+				{
+					final CacheEntry<SUBJECT> entry = new CacheEntry<>( location , currentTimeMillis() );
+					loaded.thenRunAsync( () -> cachePut( address , entry , true ) , AsyncSupport.blockingExecutor() );
+					return entry.location();
+				});
+			});
+		}
+		
+		final GeoLocation<SUBJECT> cached = lookupLoaded( current , address );
+		if ( cached != null ) {
+			return CompletableFuture.completedFuture( cached );
+		}
+		
+		return singleFlightAsync( address , () -> 
+		{
+			// another thread might've finished loading between our cache miss and registering the future
+			final GeoLocation<SUBJECT> result = cacheLookup( address );
+			if ( result != null ) 
+			{
+				statistics.recordHit();
+				return CompletableFuture.completedFuture( result );
+			}
+			// store and write-ahead log I/O must not run on the caller's thread or on whatever thread completes the delegate's future
+			final CompletableFuture<GeoLocation<SUBJECT>> stored = store == null ? CompletableFuture.completedFuture( null ) : AsyncSupport.supplyBlocking( () -> storeLookup( address ) );
+			return stored.thenCompose( location -> 
+			{
+				if ( location != null ) 
+				{
+					statistics.recordHit();
+					return CompletableFuture.completedFuture( location );
 				}
+				recordMiss( address );
+				return delegate.locateAsync( address ).thenApply( found -> cacheInsertPersistLater( address , found ) );
+			});
+		});
+	}
+	
+	/**
+	 * Asynchronous counterpart of {@link #loadSingleFlight(ISubject, AsyncSupport.ThrowingSupplier)}.
+	 * 
+	 * @param address
+	 * @param loader starts the actual lookup, only invoked if no other lookup for the subject is in progress 
+	 * @return
+	 */
+	private CompletableFuture<GeoLocation<SUBJECT>> singleFlightAsync(SUBJECT address,Supplier<CompletableFuture<GeoLocation<SUBJECT>>> loader) 
+	{
+		final CompletableFuture<GeoLocation<SUBJECT>> future = new CompletableFuture<>();
+		final CompletableFuture<GeoLocation<SUBJECT>> existing = inFlight.putIfAbsent( address , future );
+		if ( existing != null ) 
+		{
+			statistics.recordMiss(); // waiting for somebody else's lookup
+			return existing.thenApply( location -> location ); // callers must not be able to cancel the shared future
+		}
+		
+		CompletableFuture<GeoLocation<SUBJECT>> lookup;
+		try {
+			lookup = loader.get();
+		} catch(RuntimeException e) {
+			lookup = AsyncSupport.failed( e );
+		}
+		lookup.whenComplete( (location,error) -> 
+		{
+			if ( error == null ) {
+				future.complete( location );
+			} else {
+				future.completeExceptionally( AsyncSupport.unwrap( error ) );
 			}
+			inFlight.remove( address , future );
+		});
+		return future.thenApply( location -> location );
+	}
+	
+	/**
+	 * Look up a subject in the loaded cache, by exact match or by network prefix.
+	 * 
+	 * @param current
+	 * @param address
+	 * @return location or <code>null</code> if not found in memory
+	 */
+	private GeoLocation<SUBJECT> lookupLoaded(ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> current,SUBJECT address) 
+	{
+		final long now = currentTimeMillis();
+		final CacheEntry<SUBJECT> entry = current.get( address );
+		evictionPolicy.recordAccess( address );
+		if ( entry == null || isExpired( entry , now ) ) 
+		{
+			final GeoLocation<SUBJECT> byPrefix = prefixLookup( address , now );
+			if ( byPrefix != null ) 
+			{
+				statistics.recordHit();
+				return byPrefix;
+			}
+			return null; // caller records the hit or miss once the store has been checked as well
 		}
-		return result;
+		statistics.recordHit();
+		if ( entry.isOlderThan( now , refreshAfterMillis ) ) {
+			refreshInBackground( address );
+		}
+		return entry.location();
 	}
 	
-	protected Writer createWriter() throws IOException {
-		return new BufferedWriter( new FileWriter( CACHE_FILE )  );
+	private void recordMiss(SUBJECT address) 
+	{
+		System.out.println("CACHE-MISS: >"+address+"<");
+		statistics.recordMiss();
 	}
 	
-	protected InputStream createReader() throws IOException 
+	/**
+	 * Look up the location cached for the most specific network containing a subject.
+	 * 
+	 * @param address
+	 * @param now
+	 * @return location or <code>null</code> if prefix caching is disabled, the subject is not an IP address literal or 
+	 * no (unexpired) location is cached for any network containing it. 
+	 */
+	private GeoLocation<SUBJECT> prefixLookup(SUBJECT address,long now) 
 	{
-		return new BufferedInputStream( new FileInputStream( CACHE_FILE ) );
-	}	
-
-	@Override
-	public void dispose() throws Exception 
+		if ( ! prefixCaching ) {
+			return null;
+		}
+		final byte[] ip = IPAddress.parse( String.valueOf( address.value() ) );
+		if ( ip == null ) {
+			return null;
+		}
+		final CacheEntry<SUBJECT> entry = prefixes.longestMatch( ip );
+		if ( entry == null || isExpired( entry , now ) ) {
+			return null;
+		}
+		return entry.location().withSubject( address );
+	}
+	
+	private void registerPrefix(SUBJECT address,CacheEntry<SUBJECT> entry) 
+	{
+		if ( prefixCaching && entry.location().hasValidCoordinates() ) 
+		{
+			final NetworkPrefix network = networkOf( address , entry.location() );
+			if ( network != null ) {
+				prefixes.put( network , entry );
+			}
+		}
+	}
+	
+	private void unregisterPrefix(SUBJECT address,CacheEntry<SUBJECT> entry) 
 	{
-		synchronized (CACHE_LOCK) 
+		if ( prefixCaching && entry.location().hasValidCoordinates() ) 
 		{
-			if ( ! cacheLoaded ) {
+			final NetworkPrefix network = networkOf( address , entry.location() );
+			if ( network != null ) {
+				prefixes.remove( network , entry );
+			}
+		}
+	}
+	
+	/**
+	 * Returns the network a location applies to.
+	 * 
+	 * @param address
+	 * @param location
+	 * @return network or <code>null</code> if the subject is not an IP address literal
+	 */
+	private NetworkPrefix networkOf(SUBJECT address,GeoLocation<SUBJECT> location) 
+	{
+		final Object network = location.parameter( GeoLocation.KEY_NETWORK );
+		if ( network instanceof String ) 
+		{
+			try {
+				return NetworkPrefix.parse( (String) network );
+			} catch(IllegalArgumentException e) {
+				System.err.println("Ignoring malformed network of "+location+": "+e.getMessage());
+			}
+		}
+		final byte[] ip = IPAddress.parse( String.valueOf( address.value() ) );
+		if ( ip == null ) {
+			return null;
+		}
+		return NetworkPrefix.of( ip , ip.length == 4 ? ipv4PrefixLength : ipv6PrefixLength );
+	}
+	
+	/**
+	 * Answers a lookup while the cache is still being loaded in the background.
+	 * 
+	 * @param address
+	 * @return
+	 * @throws Exception
+	 */
+	private GeoLocation<SUBJECT> locateWhileLoading(SUBJECT address) throws Exception 
+	{
+		return loadSingleFlight( address , () -> 
+		{
+			statistics.recordMiss();
+			final CacheEntry<SUBJECT> entry = new CacheEntry<>( delegate.locate( address ) , currentTimeMillis() );
+			loadAsync().thenRun( () -> cachePut( address , entry , true ) );
+			return entry.location();
+		});
+	}
+	
+	/**
+	 * Reloads a (stale) cache entry on the refresh executor, unless
+	 * a lookup for this subject is already in progress.
+	 * 
+	 * @param address
+	 */
+	private void refreshInBackground(SUBJECT address) 
+	{
+		final CompletableFuture<GeoLocation<SUBJECT>> future = new CompletableFuture<>();
+		if ( inFlight.putIfAbsent( address , future ) != null ) {
+			return;
+		}
+		
+		try 
+		{
+			getRefreshExecutor().execute( () -> 
+			{
+				try 
+				{
+					if ( disposed ) {
+						throw new IllegalStateException("Cache has been disposed");
+					}
+					future.complete( cacheInsert( address , delegate.locate( address ) ) );
+				} 
+				catch(Exception | Error e) 
+				{
+					System.err.println("Background refresh of "+address+" failed: "+e.getMessage());
+					future.completeExceptionally( e );
+				} 
+				finally {
+					inFlight.remove( address , future );
+				}
+			});
+		} 
+		catch(RuntimeException e) // executor rejected the task 
+		{
+			future.completeExceptionally( e );
+			inFlight.remove( address , future );
+		}
+	}
+	
+	/**
+	 * Retrieves a location from the delegate, making sure that concurrent callers
+	 * asking for the same subject share a single delegate invocation.
+	 *  
+	 * @param address
+	 * @param loader performs the actual lookup, only invoked if no other lookup for the subject is in progress
+	 * @return
+	 * @throws Exception
+	 */
+	private GeoLocation<SUBJECT> loadSingleFlight(SUBJECT address,AsyncSupport.ThrowingSupplier<GeoLocation<SUBJECT>> loader) throws Exception 
+	{
+		final CompletableFuture<GeoLocation<SUBJECT>> future = new CompletableFuture<>();
+		final CompletableFuture<GeoLocation<SUBJECT>> existing = inFlight.putIfAbsent( address , future );
+		if ( existing != null ) 
+		{
+			statistics.recordMiss(); // waiting for somebody else's lookup
+			try {
+				return existing.get();
+			} 
+			catch(ExecutionException e) 
+			{
+				if ( e.getCause() instanceof Exception ) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+		
+		try 
+		{
+			final GeoLocation<SUBJECT> result = loader.get();
+			future.complete( result );
+			return result;
+		} 
+		catch(Exception | Error e) 
+		{
+			future.completeExceptionally( e );
+			throw e;
+		} 
+		finally {
+			inFlight.remove( address , future );
+		}
+	}
+	
+	/**
+	 * Look up a subject in the memory-mapped store (if any) and add 
+	 * it to the in-memory cache when found.
+	 * 
+	 * @param address
+	 * @return location or <code>null</code>
+	 */
+	private GeoLocation<SUBJECT> storeLookup(SUBJECT address) 
+	{
+		final MemoryMappedCacheStore<SUBJECT> mmStore = store;
+		if ( mmStore == null ) {
+			return null;
+		}
+		
+		final CacheEntry<SUBJECT> entry;
+		try {
+			entry = mmStore.get( address );
+		} 
+		catch (IOException | RuntimeException e) // treat as a miss, the delegate will answer the lookup 
+		{
+			System.err.println("Failed to read "+address+" from cache store "+mmStore+": "+e.getMessage());
+			return null;
+		}
+		if ( entry == null || isExpired( entry , currentTimeMillis() ) ) {
+			return null;
+		}
+		cachePut( address , entry , false );
+		return entry.location();
+	}
+	
+	/**
+	 * Adds a location to the cache, replacing any existing (expired) entry.
+	 * 
+	 * <p>Callers need to make sure there's at most one thread 
+	 * inserting a given subject at any time.</p>
+	 * 
+	 * @param address
+	 * @param location
+	 * @return the (frozen) location that was added to the cache
+	 */
+	private GeoLocation<SUBJECT> cacheInsert(SUBJECT address,GeoLocation<SUBJECT> location) 
+	{
+		final CacheEntry<SUBJECT> entry = new CacheEntry<>( location , currentTimeMillis() );
+		cachePut( address , entry , true );
+		return entry.location();
+	}
+	
+	/**
+	 * Adds a location to the in-memory cache right away but writes it 
+	 * to the store and write-ahead log on a background thread.
+	 * 
+	 * @param address
+	 * @param location
+	 * @return the (frozen) location that was added to the cache
+	 * @see #cacheInsert(ISubject, GeoLocation)
+	 */
+	private GeoLocation<SUBJECT> cacheInsertPersistLater(SUBJECT address,GeoLocation<SUBJECT> location) 
+	{
+		final CacheEntry<SUBJECT> entry = new CacheEntry<>( location , currentTimeMillis() );
+		cachePut( address , entry , false );
+		if ( ( writeAheadLog != null || store != null ) && ! disposed ) 
+		{
+			pendingWrites.incrementAndGet();
+			try 
+			{
+				AsyncSupport.blockingExecutor().execute( () -> 
+				{
+					SNAPSHOT_LOCK.readLock().lock();
+					try 
+					{
+						if ( ! closed ) 
+						{
+							appendToLog( entry );
+							appendToStore( entry );
+						}
+					} 
+					finally 
+					{
+						SNAPSHOT_LOCK.readLock().unlock();
+						writeFinished();
+					}
+				});
+			} 
+			catch(RuntimeException e) // rejected 
+			{
+				writeFinished();
+				System.err.println("Failed to persist "+address+": "+e.getMessage());
+			}
+		}
+		return entry.location();
+	}
+	
+	private void writeFinished() 
+	{
+		if ( pendingWrites.decrementAndGet() == 0 ) 
+		{
+			synchronized( pendingWrites ) {
+				pendingWrites.notifyAll();
+			}
+		}
+	}
+	
+	private void awaitPendingWrites() throws InterruptedException 
+	{
+		final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( SHUTDOWN_TIMEOUT_SECONDS );
+		synchronized( pendingWrites ) 
+		{
+			while ( pendingWrites.get() > 0 ) 
+			{
+				final long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 ) 
+				{
+					System.err.println( pendingWrites.get()+" cache writes did not finish within "+SHUTDOWN_TIMEOUT_SECONDS+" seconds, discarding them");
+					return;
+				}
+				pendingWrites.wait( remaining );
+			}
+		}
+	}
+	
+	private void cachePut(SUBJECT address,CacheEntry<SUBJECT> entry,boolean persist) 
+	{
+		SNAPSHOT_LOCK.readLock().lock();
+		try 
+		{
+			final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> current = getCache();
+			final CacheEntry<SUBJECT> previous = current.put( address , entry );
+			totalWeight.addAndGet( weigher.applyAsInt( entry.location() ) );
+			if ( previous != null ) {
+				unregisterPrefix( address , previous );
+			}
+			registerPrefix( address , entry );
+			if ( previous == null ) 
+			{
+				evictionPolicy.recordInsertion( address );
+				System.out.println("CACHE-UPDATE: "+address+" ( cache size: "+current.size()+")" );
+			} 
+			else 
+			{
+				totalWeight.addAndGet( -weigher.applyAsInt( previous.location() ) );
+				System.out.println("CACHE-REFRESH: "+address );
+			}
+			evictIfNecessary( current , address );
+			if ( persist && ! disposed ) 
+			{
+				appendToLog( entry );
+				appendToStore( entry );
+			}
+		} 
+		finally {
+			SNAPSHOT_LOCK.readLock().unlock();
+		}
+	}
+	
+	private void appendToStore(CacheEntry<SUBJECT> entry) 
+	{
+		final MemoryMappedCacheStore<SUBJECT> mmStore = store;
+		if ( mmStore != null ) 
+		{
+			try {
+				mmStore.put( entry );
+			} catch (IOException e) {
+				System.err.println("Failed to write to cache store "+mmStore+": "+e.getMessage());
+			}
+		}
+	}
+	
+	private void appendToLog(CacheEntry<SUBJECT> entry) 
+	{
+		final WriteAheadLog<SUBJECT> log = writeAheadLog;
+		if ( log == null ) {
+			return;
+		}
+		
+		try {
+			log.append( entry );
+		} 
+		catch (IOException e) 
+		{
+			System.err.println("Failed to append to cache log "+log+": "+e.getMessage());
+			return;
+		}
+		
+		if ( log.size() > compactionThreshold && compactionRunning.compareAndSet( false , true ) ) 
+		{
+			final Thread t = new Thread( () -> 
+			{
+				try {
+					compactLog( log );
+				} 
+				catch(Exception e) {
+					e.printStackTrace();
+				} 
+				finally {
+					compactionRunning.set( false );
+				}
+			} , "cache-log-compaction" );
+			t.setDaemon( true );
+			t.start();
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of the cache to the cache file and discards 
+	 * all log records that are part of this snapshot.
+	 * 
+	 * @param log
+	 * @throws IOException
+	 */
+	private void compactLog(WriteAheadLog<SUBJECT> log) throws IOException 
+	{
+		final List<CacheEntry<SUBJECT>> snapshot;
+		final int sequenceNumber;
+		SNAPSHOT_LOCK.writeLock().lock();
+		try 
+		{
+			if ( disposed || cache == null ) {
 				return;
 			}
+			snapshot = new ArrayList<>( cache.values() );
+			sequenceNumber = log.rotate();
+		} 
+		finally {
+			SNAPSHOT_LOCK.writeLock().unlock();
+		}
+		
+		long time = -System.currentTimeMillis();
+		try ( Writer writer = createWriter() ) {
+			writeSnapshot( snapshot , writer );
+		}
+		log.deleteRotated( sequenceNumber );
+		time += System.currentTimeMillis();
+		System.out.println("Compacted cache log, persisted "+snapshot.size()+" cache entries ("+time+" ms)");
+	}
+	
+	private void writeSnapshot(List<CacheEntry<SUBJECT>> snapshot,Writer writer) 
+	{
+		final JSONWriter jsonWriter = new JSONWriter(writer);
+		
+		// start
+		jsonWriter.array();
+		
+		final long now = currentTimeMillis();
+		for ( CacheEntry<SUBJECT> entry : snapshot ) 
+		{
+			if ( ! isExpired( entry , now ) ) {
+				entry.toJSON( jsonWriter );
+			}
+		}
+
+		// end
+		jsonWriter.endArray();
+	}
+	
+	/**
+	 * Creates the writer used for persisting the cache.
+	 * 
+	 * <p>Data is written to a temporary file that atomically replaces the cache file when the writer gets closed.</p>
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected Writer createWriter() throws IOException 
+	{
+		final File file = cacheFile;
+		final File tmpFile = new File( file.getPath()+".tmp" );
+		return new BufferedWriter( new FileWriter( tmpFile ) ) 
+		{
+			private boolean closed;
 			
-			long time = -System.currentTimeMillis();
-			try (Writer writer = createWriter() ) 
-			{
-				final JSONWriter jsonWriter = new JSONWriter(writer);
-				
-				// start
-				jsonWriter.array();
-				
-				for ( Entry<SUBJECT, GeoLocation<SUBJECT>> entry : cache.entrySet() ) 
+			@Override
+			public void close() throws IOException 
+			{
+				if ( ! closed ) 
 				{
-					entry.getValue().toJSON( jsonWriter );
+					closed = true;
+					super.close();
+					Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
 				}
+			}
+		};
+	}
+	
+	protected InputStream createReader() throws IOException 
+	{
+		return new BufferedInputStream( new FileInputStream( cacheFile ) );
+	}	
 
-				// end
-				jsonWriter.endArray();
+	@Override
+	public void dispose() throws Exception 
+	{
+		SNAPSHOT_LOCK.writeLock().lock();
+		try 
+		{
+			// no more log appends / compactions / background refreshes after this point, 
+			// except for writes that have already been queued
+			disposed = true;
+		} 
+		finally {
+			SNAPSHOT_LOCK.writeLock().unlock();
+		}
+		
+		// make sure no refresh is still running when the log / store gets closed
+		final ExecutorService executor;
+		synchronized( REFRESH_EXECUTOR_LOCK ) 
+		{
+			executor = defaultRefreshExecutor;
+			defaultRefreshExecutor = null;
+			refreshExecutor = null;
+		}
+		if ( executor != null ) 
+		{
+			executor.shutdown();
+			if ( ! executor.awaitTermination( SHUTDOWN_TIMEOUT_SECONDS , TimeUnit.SECONDS ) ) 
+			{
+				System.err.println("Background refreshes did not finish within "+SHUTDOWN_TIMEOUT_SECONDS+" seconds, interrupting them");
+				executor.shutdownNow();
 			}
-			time += System.currentTimeMillis();
-			System.out.println("Persisted "+cache.size()+" cache entries ("+time+" ms)");			
 		}
+		
+		// entries from asynchronous lookups are written in the background, let them reach the log / store
+		awaitPendingWrites();
+		SNAPSHOT_LOCK.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			SNAPSHOT_LOCK.writeLock().unlock();
+		}
+		
+		final ConcurrentHashMap<SUBJECT, CacheEntry<SUBJECT>> current = cache;
+		// only needed if there's neither a log nor a store holding the data already
+		final List<CacheEntry<SUBJECT>> snapshot = current == null || store != null || writeAheadLog != null ? null : new ArrayList<>( current.values() );
+		
+		final MemoryMappedCacheStore<SUBJECT> mmStore = store;
+		if ( mmStore != null ) 
+		{
+			mmStore.close();
+			System.out.println("Closed cache store "+mmStore);
+			System.out.println("Cache statistics: "+statistics);
+			return;
+		}
+		
+		final WriteAheadLog<SUBJECT> log = writeAheadLog;
+		if ( log != null ) 
+		{
+			// all entries have already been appended to the log, just make sure they made it to disk 
+			log.close();
+			System.out.println("Closed cache log "+log);
+			System.out.println("Cache statistics: "+statistics);
+			return;
+		}
+		
+		if ( snapshot == null ) {
+			return;
+		}
+			
+		long time = -System.currentTimeMillis();
+		try (Writer writer = createWriter() ) 
+		{
+			writeSnapshot( snapshot , writer );
+		}
+		time += System.currentTimeMillis();
+		System.out.println("Persisted "+snapshot.size()+" cache entries ("+time+" ms)");			
+		System.out.println("Cache statistics: "+statistics);
 	}
 
 	@Override
 	public void flushCaches() {
 
 		try {
-			synchronized (CACHE_LOCK) 
-			{
-				if ( cacheLoaded ) {
+			SNAPSHOT_LOCK.writeLock().lock();
+			try {
+				synchronized (CACHE_LOCK) 
+				{
 					cache = null;
-					cacheLoaded = false;
+					loadingFuture = null;
+					prefixes.clear();
+					totalWeight.set( 0 );
+					evictionPolicy.clear();
 				}
+			} finally {
+				SNAPSHOT_LOCK.writeLock().unlock();
 			}
 		} finally {
 			delegate.flushCaches();
@@ -18,46 +18,949 @@ package de.codesourcery.geoip.locate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.ISubject;
 
+/**
+ * Forwards lookups to one of several {@link IGeoLocator}s.
+ * 
+ * <p>By default, all lookups go to the first delegate that {@link IGeoLocator#isAvailable() is available}. 
+ * In {@link #setChaining(boolean) chaining mode}, delegates are tried one after another until one of them 
+ * returns a valid location, optionally in an order that {@link #setAdaptiveOrdering(boolean) adapts} to 
+ * their observed latency and success rate.</p>
+ * 
+ * <p>Chained lookups may also be {@link #setHedging(double, long, TimeUnit) hedged}: If a delegate takes longer than usual, 
+ * the next one is queried concurrently and the first valid answer wins.</p>
+ * 
+ * <p>Delegate availability is not checked on every lookup but probed once and then 
+ * {@link #setAvailabilityRefreshInterval(long, TimeUnit) periodically} (and whenever a delegate failed) 
+ * refreshed in the background.</p>
+ * 
+ * <p>Each delegate can be guarded by a {@link #setCircuitBreaker(int, long, TimeUnit) circuit breaker} that
+ * stops sending lookups to it after repeated failures and lets a single probe lookup through once in a while.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <SUBJECT>
+ */
 public class DelegatingGeoLocator<SUBJECT extends ISubject<?>> implements IGeoLocator<SUBJECT> {
 
+    // number of lookups a delegate needs to have handled before adaptive ordering considers it
+    private static final int MIN_SAMPLES = 10;
+    
+    // number of lookups between re-calculating the delegate order
+    private static final int REORDER_INTERVAL = 50;
+    
+    private static final long DEFAULT_AVAILABILITY_REFRESH_SECONDS = 30;
+    
     private final List<IGeoLocator<SUBJECT>> delegates = new ArrayList<>();
     
+    // delegates that were available when last probed, in constructor order
+    private volatile List<IGeoLocator<SUBJECT>> available = Collections.emptyList();
+    private volatile long availabilityRefreshNanos = TimeUnit.SECONDS.toNanos( DEFAULT_AVAILABILITY_REFRESH_SECONDS );
+    private volatile long nextAvailabilityRefresh;
+    private final AtomicBoolean availabilityRefreshPending = new AtomicBoolean();
+    
+    // consecutive failures after which a delegate's circuit breaker opens, <= 0 disables circuit breaking
+    private volatile int failureThreshold;
+    private volatile long openCircuitNanos;
+    
+    // delegates in the order they're tried in chaining mode
+    private volatile List<DelegateStatistics<SUBJECT>> chain;
+    
+    private volatile boolean chaining;
+    private volatile boolean adaptiveOrdering;
+    private final AtomicLong lookupCount = new AtomicLong();
+    
+    // percentile of a delegate's latency after which the next delegate gets queried, <= 0 disables hedging
+    private volatile double hedgePercentile;
+    private volatile long defaultHedgeDelayNanos;
+    
+    private final Object HEDGE_TIMER_LOCK = new Object();
+    
+    // fires the delayed hedge requests, never runs lookups itself
+    //@GuardedBy( HEDGE_TIMER_LOCK )
+    private ScheduledExecutorService hedgeTimer;
+    
+    /**
+     * Lookup statistics for a single delegate.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     *
+     * @param <SUBJECT>
+     */
+    public static final class DelegateStatistics<SUBJECT extends ISubject<?>> 
+    {
+        // weight of the most recent sample in the latency moving average
+        private static final double ALPHA = 0.2;
+        
+        // value of openUntil while the circuit breaker is closed
+        private static final long CLOSED = Long.MIN_VALUE;
+        
+        private final IGeoLocator<SUBJECT> delegate;
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder successes = new LongAdder();
+        private final AtomicLong averageLatencyNanos = new AtomicLong( Double.doubleToLongBits( 0 ) );
+        
+        // ring buffer with the most recent latencies
+        private final long[] recentLatencies = new long[128];
+        private final AtomicInteger latencyCount = new AtomicInteger();
+        
+        // circuit breaker state
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong openUntil = new AtomicLong( CLOSED );
+        private final LongAdder rejectedLookups = new LongAdder();
+        private final LongAdder circuitOpenings = new LongAdder();
+        
+        private DelegateStatistics(IGeoLocator<SUBJECT> delegate) {
+            this.delegate = delegate;
+        }
+        
+        private void record(long latencyNanos,boolean success) 
+        {
+            lookups.increment();
+            if ( success ) {
+                successes.increment();
+            }
+            final int index = latencyCount.getAndIncrement();
+            recentLatencies[ ( index & Integer.MAX_VALUE ) % recentLatencies.length ] = latencyNanos;
+            long current;
+            double updated;
+            do 
+            {
+                current = averageLatencyNanos.get();
+                final double average = Double.longBitsToDouble( current );
+                updated = average == 0 ? latencyNanos : average + ALPHA * ( latencyNanos - average );
+            } 
+            while ( ! averageLatencyNanos.compareAndSet( current , Double.doubleToLongBits( updated ) ) );
+        }
+        
+        /**
+         * Returns whether the circuit breaker lets a lookup through.
+         * 
+         * <p>Once an open circuit's timeout elapsed, exactly one caller gets to probe the delegate 
+         * (half-open state), everybody else is rejected until the probe finished or another timeout elapsed.</p>
+         */
+        private boolean allowRequest(long openCircuitNanos) 
+        {
+            final long until = openUntil.get();
+            if ( until == CLOSED ) {
+                return true;
+            }
+            final long now = System.nanoTime();
+            if ( now - until < 0 || ! openUntil.compareAndSet( until , now + openCircuitNanos ) ) 
+            {
+                rejectedLookups.increment();
+                return false;
+            }
+            System.out.println("Probing "+delegate+" (circuit breaker half-open)");
+            return true;
+        }
+        
+        private void onSuccess() 
+        {
+            consecutiveFailures.set( 0 );
+            if ( openUntil.get() != CLOSED && openUntil.getAndSet( CLOSED ) != CLOSED ) {
+                System.out.println("Circuit breaker for "+delegate+" closed");
+            }
+        }
+        
+        private void onFailure(int failureThreshold,long openCircuitNanos) 
+        {
+            if ( consecutiveFailures.incrementAndGet() >= failureThreshold ) 
+            {
+                if ( openUntil.getAndSet( System.nanoTime() + openCircuitNanos ) == CLOSED ) 
+                {
+                    circuitOpenings.increment();
+                    System.err.println("Circuit breaker for "+delegate+" opened after "+consecutiveFailures.get()+" consecutive failures");
+                }
+            }
+        }
+        
+        public IGeoLocator<SUBJECT> delegate() {
+            return delegate;
+        }
+        
+        /**
+         * Returns whether this delegate's circuit breaker is currently open (or half-open).
+         * 
+         * @return
+         */
+        public boolean isCircuitOpen() {
+            return openUntil.get() != CLOSED;
+        }
+        
+        public int consecutiveFailures() {
+            return consecutiveFailures.get();
+        }
+        
+        /**
+         * Returns the number of lookups that were not sent to this delegate because its circuit breaker was open.
+         * 
+         * @return
+         */
+        public long rejectedLookups() {
+            return rejectedLookups.sum();
+        }
+        
+        /**
+         * Returns how often this delegate's circuit breaker opened.
+         * 
+         * @return
+         */
+        public long circuitOpenings() {
+            return circuitOpenings.sum();
+        }
+        
+        public long lookups() {
+            return lookups.sum();
+        }
+        
+        /**
+         * Returns the fraction of lookups that returned a valid location.
+         * 
+         * @return value between 0 and 1
+         */
+        public double successRate() 
+        {
+            final long total = lookups.sum();
+            return total == 0 ? 0 : successes.sum() / (double) total;
+        }
+        
+        /**
+         * Returns the exponential moving average of this delegate's lookup latency.
+         * 
+         * @return latency in milliseconds
+         */
+        public double averageLatencyMillis() {
+            return Double.longBitsToDouble( averageLatencyNanos.get() ) / 1_000_000d;
+        }
+        
+        /**
+         * Returns a percentile of the recently observed lookup latencies.
+         * 
+         * @param percentile value between 0 and 1
+         * @return latency in nanoseconds or -1 if there are not enough samples
+         */
+        public long latencyPercentileNanos(double percentile) 
+        {
+            final int count = Math.min( latencyCount.get() & Integer.MAX_VALUE , recentLatencies.length );
+            if ( count < MIN_SAMPLES ) {
+                return -1;
+            }
+            final long[] samples = Arrays.copyOf( recentLatencies , count );
+            Arrays.sort( samples );
+            return samples[ Math.max( 0 , (int) Math.ceil( percentile * count ) - 1 ) ];
+        }
+        
+        /**
+         * Expected cost of getting a valid location from this delegate, lower is better.
+         * 
+         * Trying delegates in ascending order of latency / success rate minimizes the expected
+         * total latency of a lookup.
+         */
+        private double score() 
+        {
+            final double successRate = successRate();
+            return successRate == 0 ? Double.MAX_VALUE : averageLatencyMillis() / successRate;
+        }
+        
+        @Override
+        public String toString() {
+            return delegate+" [ lookups: "+lookups()+" , success rate: "+String.format("%.2f",successRate())+" , latency: "+String.format("%.2f",averageLatencyMillis())+" ms"+
+                    ( isCircuitOpen() ? " , circuit open" : "" )+" ]";
+        }
+    }
+    
     @SafeVarargs
     public DelegatingGeoLocator(@SuppressWarnings("unchecked") IGeoLocator<SUBJECT>... delegates) 
     {
         if ( delegates != null ) {
             this.delegates.addAll( Arrays.asList( delegates ) );
         }
+        final List<DelegateStatistics<SUBJECT>> list = new ArrayList<>();
+        this.delegates.forEach( d -> list.add( new DelegateStatistics<>( d ) ) );
+        this.chain = list;
+        refreshAvailability();
+    }
+    
+    /**
+     * Enables or disables chaining mode.
+     * 
+     * <p>In chaining mode, a lookup that fails or returns an invalid location 
+     * is retried with the next available delegate.</p>
+     * 
+     * @param chaining
+     */
+    public void setChaining(boolean chaining) {
+        this.chaining = chaining;
+    }
+    
+    /**
+     * Enables or disables adaptive ordering of delegates in chaining mode.
+     * 
+     * <p>When enabled, delegates that answered enough lookups are periodically re-ordered by their 
+     * average latency divided by their success rate. Delegates lacking enough samples keep their position.</p>
+     * 
+     * @param adaptiveOrdering
+     */
+    public void setAdaptiveOrdering(boolean adaptiveOrdering) {
+        this.adaptiveOrdering = adaptiveOrdering;
+    }
+    
+    /**
+     * Enables hedged requests in chaining mode.
+     * 
+     * <p>If a delegate hasn't answered after the given percentile of its recent latencies, the same lookup is sent to 
+     * the next delegate in the chain as well. The first valid result is returned and all lookups still in progress 
+     * get cancelled.</p>
+     * 
+     * @param percentile percentile (0...1, exclusive) of a delegate's latency after which the next delegate gets queried
+     * @param defaultDelay delay used while there are not enough samples for a delegate yet
+     * @param unit
+     */
+    public void setHedging(double percentile,long defaultDelay,TimeUnit unit) 
+    {
+        if ( percentile <= 0 || percentile >= 1 ) {
+            throw new IllegalArgumentException("Percentile must be > 0 and < 1");
+        }
+        if ( defaultDelay < 0 ) {
+            throw new IllegalArgumentException("Default delay must be >= 0");
+        }
+        this.defaultHedgeDelayNanos = unit.toNanos( defaultDelay );
+        this.hedgePercentile = percentile;
+    }
+    
+    /**
+     * Enables per-delegate circuit breakers.
+     * 
+     * <p>After <code>failureThreshold</code> consecutive lookups failed with an exception, a delegate 
+     * is skipped for the given time. After that, a single lookup is sent to it; if it succeeds, 
+     * the delegate is used again, otherwise it's skipped for another period.</p>
+     * 
+     * <p>Lookups that merely returned no valid location do not count as failures.</p>
+     * 
+     * @param failureThreshold number of consecutive failures that open the circuit
+     * @param openDuration
+     * @param unit
+     */
+    public void setCircuitBreaker(int failureThreshold,long openDuration,TimeUnit unit) 
+    {
+        if ( failureThreshold < 1 ) {
+            throw new IllegalArgumentException("Failure threshold must be >= 1");
+        }
+        if ( openDuration <= 0 ) {
+            throw new IllegalArgumentException("Open duration must be > 0");
+        }
+        this.openCircuitNanos = unit.toNanos( openDuration );
+        this.failureThreshold = failureThreshold;
+    }
+    
+    private boolean allowRequest(DelegateStatistics<SUBJECT> stats) {
+        return failureThreshold <= 0 || stats.allowRequest( openCircuitNanos );
+    }
+    
+    private void onSuccess(DelegateStatistics<SUBJECT> stats) 
+    {
+        if ( failureThreshold > 0 ) {
+            stats.onSuccess();
+        }
+    }
+    
+    private void onFailure(DelegateStatistics<SUBJECT> stats) 
+    {
+        if ( failureThreshold > 0 ) {
+            stats.onFailure( failureThreshold , openCircuitNanos );
+        }
+        refreshAvailabilityAsync();
+    }
+    
+    /**
+     * Sets how often delegate availability gets re-checked.
+     * 
+     * @param interval
+     * @param unit
+     */
+    public void setAvailabilityRefreshInterval(long interval,TimeUnit unit) 
+    {
+        if ( interval <= 0 ) {
+            throw new IllegalArgumentException("Interval must be > 0");
+        }
+        this.availabilityRefreshNanos = unit.toNanos( interval );
+        this.nextAvailabilityRefresh = System.nanoTime() + availabilityRefreshNanos;
+    }
+    
+    /**
+     * Checks the availability of all delegates, blocking until done.
+     */
+    public void refreshAvailability() 
+    {
+        final List<IGeoLocator<SUBJECT>> result = new ArrayList<>();
+        for ( IGeoLocator<SUBJECT> delegate : delegates ) 
+        {
+            try 
+            {
+                if ( delegate.isAvailable() ) {
+                    result.add( delegate );
+                }
+            } 
+            catch(RuntimeException e) {
+                System.err.println("Failed to check availability of "+delegate+": "+e.getMessage());
+            }
+        }
+        available = Collections.unmodifiableList( result );
+        nextAvailabilityRefresh = System.nanoTime() + availabilityRefreshNanos;
+    }
+    
+    private void refreshAvailabilityAsync() 
+    {
+        if ( availabilityRefreshPending.compareAndSet( false , true ) ) 
+        {
+            CompletableFuture.runAsync( () -> 
+            {
+                try {
+                    refreshAvailability();
+                } finally {
+                    availabilityRefreshPending.set( false );
+                }
+            });
+        }
+    }
+    
+    private List<IGeoLocator<SUBJECT>> available() 
+    {
+        if ( System.nanoTime() - nextAvailabilityRefresh >= 0 ) {
+            refreshAvailabilityAsync();
+        }
+        return available;
+    }
+    
+    /**
+     * Returns lookup statistics for all delegates (chaining mode only), in the order they're currently tried.
+     * 
+     * @return
+     */
+    public List<DelegateStatistics<SUBJECT>> getStatistics() {
+        return new ArrayList<>( chain );
     }
     
     @Override
     public List<GeoLocation<SUBJECT>> locate(Collection<SUBJECT> subjects,de.codesourcery.geoip.locate.IGeoLocator.IProgressListener progressListener) throws Exception 
     {
-        Optional<IGeoLocator<SUBJECT>> delegate = getAvailable();
+        if ( chaining ) {
+            return locateChained( subjects , progressListener );
+        }
+        Optional<DelegateStatistics<SUBJECT>> delegate = getAvailable();
         if ( ! delegate.isPresent() ) {
             throw new Exception("No geo locators available" ); 
         }
-        return delegate.get().locate( subjects , progressListener );
+        final DelegateStatistics<SUBJECT> stats = delegate.get();
+        final long start = System.nanoTime();
+        try 
+        {
+            final List<GeoLocation<SUBJECT>> result = stats.delegate.locate( subjects , progressListener );
+            // latency is accounted for per subject so batches don't skew the percentiles used for hedging
+            final long latencyPerSubject = ( System.nanoTime() - start ) / Math.max( 1 , result.size() );
+            for ( GeoLocation<SUBJECT> location : result ) {
+                stats.record( latencyPerSubject , location != null && location.hasValidCoordinates() );
+            }
+            onSuccess( stats );
+            return result;
+        } 
+        catch(Exception e) 
+        {
+            stats.record( System.nanoTime() - start , false );
+            onFailure( stats );
+            throw e;
+        }
     }
     
-    private Optional<IGeoLocator<SUBJECT>> getAvailable() {
-        return delegates.stream().filter( d -> d.isAvailable() ).findFirst();
+    private Optional<DelegateStatistics<SUBJECT>> getAvailable() 
+    {
+        final List<IGeoLocator<SUBJECT>> available = available();
+        if ( ! available.isEmpty() ) 
+        {
+            for ( DelegateStatistics<SUBJECT> stats : chain ) 
+            {
+                if ( available.contains( stats.delegate ) && allowRequest( stats ) ) {
+                    return Optional.of( stats );
+                }
+            }
+        }
+        return Optional.empty();
     }
 
+    private List<GeoLocation<SUBJECT>> locateChained(Collection<SUBJECT> subjects,IProgressListener progressListener) throws Exception 
+    {
+        final List<GeoLocation<SUBJECT>> result = new ArrayList<>();
+        progressListener.progress( 0 , subjects.size() );
+        int itemCount = 1;
+        
+        for (Iterator<SUBJECT> it = subjects.iterator(); it.hasNext();) 
+        {
+            result.add( locateChained( it.next() ) );
+            if ( it.hasNext() && ! progressListener.progress( itemCount++ , subjects.size() ) ) 
+            {
+                System.err.println("*** Operation cancelled by user ***");
+                result.clear();
+                break;
+            }
+        }
+        progressListener.progress( subjects.size() , subjects.size() );
+        return result;        
+    }
+    
+    private void reorderIfNecessary() 
+    {
+        if ( adaptiveOrdering && lookupCount.incrementAndGet() % REORDER_INTERVAL == 0 ) {
+            reorder();
+        }
+    }
+    
+    private GeoLocation<SUBJECT> locateChained(SUBJECT subject) throws Exception 
+    {
+        reorderIfNecessary();
+        
+        if ( hedgePercentile > 0 ) {
+            return locateHedged( subject );
+        }
+        
+        final List<IGeoLocator<SUBJECT>> available = available();
+        Exception lastError = null;
+        GeoLocation<SUBJECT> lastResult = null;
+        for ( DelegateStatistics<SUBJECT> stats : chain ) 
+        {
+            if ( ! available.contains( stats.delegate ) || ! allowRequest( stats ) ) {
+                continue;
+            }
+            final long start = System.nanoTime();
+            try 
+            {
+                final GeoLocation<SUBJECT> result = orEmpty( subject , stats.delegate.locate( subject ) );
+                stats.record( System.nanoTime() - start , result.hasValidCoordinates() );
+                onSuccess( stats );
+                if ( result.hasValidCoordinates() ) {
+                    return result;
+                }
+                lastResult = result;
+            } 
+            catch(Exception e) 
+            {
+                stats.record( System.nanoTime() - start , false );
+                System.err.println("Locating "+subject+" with "+stats.delegate+" failed: "+e.getMessage());
+                onFailure( stats );
+                lastError = e;
+            }
+        }
+        if ( lastResult != null ) {
+            return lastResult;
+        }
+        if ( lastError != null ) {
+            throw lastError;
+        }
+        throw new Exception("No geo locators available" ); 
+    }
+    
+    /**
+     * A single hedged lookup.
+     * 
+     * <p>Delegates are queried through their {@link IGeoLocator#locateAsync(ISubject)} method, the delay after which
+     * the next delegate gets queried as well is tracked by a timer, so no thread is blocked while waiting.</p>
+     */
+    private final class HedgedLookup 
+    {
+        private final SUBJECT subject;
+        private final Iterator<DelegateStatistics<SUBJECT>> remaining;
+        private final CompletableFuture<GeoLocation<SUBJECT>> result = new CompletableFuture<>();
+        
+        //@GuardedBy( this )
+        private final List<CompletableFuture<GeoLocation<SUBJECT>>> attempts = new ArrayList<>();
+        private int outstanding;
+        private ScheduledFuture<?> timer;
+        private GeoLocation<SUBJECT> lastResult;
+        private Throwable lastError;
+        
+        public HedgedLookup(SUBJECT subject,List<DelegateStatistics<SUBJECT>> candidates) 
+        {
+            this.subject = subject;
+            this.remaining = candidates.iterator();
+            // however the lookup ends (including cancellation by the caller), stop everything that is still running
+            result.whenComplete( (location,error) -> cancelOutstanding() );
+        }
+        
+        public CompletableFuture<GeoLocation<SUBJECT>> start() 
+        {
+            startNext();
+            return result;
+        }
+        
+        /**
+         * Queries the next candidate whose circuit breaker admits a request.
+         * 
+         * <p>The breaker is only consulted right before a delegate actually gets invoked, so
+         * half-open probes are not claimed by delegates that the lookup never reaches.</p>
+         */
+        private void startNext() 
+        {
+            DelegateStatistics<SUBJECT> stats = null;
+            final boolean exhausted;
+            synchronized( this ) 
+            {
+                if ( result.isDone() ) {
+                    return;
+                }
+                while ( stats == null && remaining.hasNext() ) 
+                {
+                    final DelegateStatistics<SUBJECT> candidate = remaining.next();
+                    if ( allowRequest( candidate ) ) {
+                        stats = candidate;
+                    }
+                }
+                if ( stats != null ) {
+                    outstanding++;
+                }
+                exhausted = stats == null && outstanding == 0;
+            }
+            if ( stats == null ) 
+            {
+                if ( exhausted ) {
+                    finish();
+                }
+                return;
+            }
+            
+            final DelegateStatistics<SUBJECT> current = stats;
+            final long start = System.nanoTime();
+            CompletableFuture<GeoLocation<SUBJECT>> attempt;
+            try {
+                attempt = current.delegate.locateAsync( subject );
+            } catch(RuntimeException e) {
+                attempt = AsyncSupport.failed( e );
+            }
+            
+            synchronized( this ) 
+            {
+                attempts.add( attempt );
+                if ( remaining.hasNext() ) {
+                    scheduleHedge( current , attempt );
+                }
+            }
+            if ( result.isDone() ) { // lost the race against another attempt 
+                attempt.cancel( true );
+            }
+            attempt.whenComplete( (location,error) -> onCompletion( current , start , location , error ) );
+        }
+        
+        //@GuardedBy( this )
+        private void scheduleHedge(DelegateStatistics<SUBJECT> stats,CompletableFuture<GeoLocation<SUBJECT>> attempt) 
+        {
+            if ( timer != null ) {
+                timer.cancel( false );
+            }
+            final long percentile = stats.latencyPercentileNanos( hedgePercentile );
+            timer = getHedgeTimer().schedule( () -> 
+            {
+                if ( ! attempt.isDone() && ! result.isDone() ) 
+                {
+                    startNext();
+                }
+            } , percentile < 0 ? defaultHedgeDelayNanos : percentile , TimeUnit.NANOSECONDS );
+        }
+        
+        private void onCompletion(DelegateStatistics<SUBJECT> stats,long start,GeoLocation<SUBJECT> location,Throwable error) 
+        {
+            final Throwable cause = error == null ? null : AsyncSupport.unwrap( error );
+            final GeoLocation<SUBJECT> found = error == null ? orEmpty( subject , location ) : null;
+            
+            // don't penalize delegates for lookups we aborted ourselves
+            if ( ! ( cause instanceof CancellationException ) ) 
+            {
+                if ( found != null ) 
+                {
+                    stats.record( System.nanoTime() - start , found.hasValidCoordinates() );
+                    onSuccess( stats );
+                } 
+                else 
+                {
+                    stats.record( System.nanoTime() - start , false );
+                    onFailure( stats );
+                }
+            }
+            
+            final boolean tryNext;
+            synchronized( this ) 
+            {
+                outstanding--;
+                if ( result.isDone() ) {
+                    return;
+                }
+                if ( found != null && found.hasValidCoordinates() ) {
+                    tryNext = false;
+                } 
+                else 
+                {
+                    if ( cause != null ) 
+                    {
+                        System.err.println("Locating "+subject+" with "+stats.delegate+" failed: "+cause.getMessage());
+                        lastError = cause;
+                    } else {
+                        lastResult = found;
+                    }
+                    // no point in waiting, try the next delegate right away
+                    tryNext = outstanding == 0;
+                }
+            }
+            if ( found != null && found.hasValidCoordinates() ) {
+                result.complete( found );
+            } else if ( tryNext ) {
+                startNext();
+            }
+        }
+        
+        private void finish() 
+        {
+            final GeoLocation<SUBJECT> location;
+            final Throwable error;
+            synchronized( this ) 
+            {
+                location = lastResult;
+                error = lastError;
+            }
+            if ( location != null ) {
+                result.complete( location );
+            } else if ( error != null ) {
+                result.completeExceptionally( error );
+            } else {
+                result.completeExceptionally( new Exception("No geo locators available" ) );
+            }
+        }
+        
+        private void cancelOutstanding() 
+        {
+            final List<CompletableFuture<GeoLocation<SUBJECT>>> toCancel;
+            synchronized( this ) 
+            {
+                if ( timer != null ) {
+                    timer.cancel( false );
+                }
+                toCancel = new ArrayList<>( attempts );
+            }
+            // no-op for finished attempts, interrupts blocking lookups running on AsyncSupport's pool
+            toCancel.forEach( attempt -> attempt.cancel( true ) );
+        }
+    }
+    
+    private GeoLocation<SUBJECT> locateHedged(SUBJECT subject) throws Exception 
+    {
+        final CompletableFuture<GeoLocation<SUBJECT>> future = locateHedgedAsync( subject );
+        try {
+            return future.get();
+        } 
+        catch(InterruptedException e) 
+        {
+            future.cancel( true );
+            throw e;
+        } 
+        catch(ExecutionException e) 
+        {
+            final Throwable cause = AsyncSupport.unwrap( e );
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+    
+    private CompletableFuture<GeoLocation<SUBJECT>> locateHedgedAsync(SUBJECT subject) 
+    {
+        final List<IGeoLocator<SUBJECT>> available = available();
+        final List<DelegateStatistics<SUBJECT>> candidates = new ArrayList<>();
+        for ( DelegateStatistics<SUBJECT> stats : chain ) 
+        {
+            if ( available.contains( stats.delegate ) ) {
+                candidates.add( stats );
+            }
+        }
+        return new HedgedLookup( subject , candidates ).start();
+    }
+    
+    /**
+     * Treats a <code>null</code> result from a delegate as 'no location found'.
+     */
+    private static <SUBJECT extends ISubject<?>> GeoLocation<SUBJECT> orEmpty(SUBJECT subject,GeoLocation<SUBJECT> result) {
+        return result != null ? result : new GeoLocation<>( subject );
+    }
+    
+    private ScheduledExecutorService getHedgeTimer() 
+    {
+        synchronized( HEDGE_TIMER_LOCK ) 
+        {
+            if ( hedgeTimer == null ) 
+            {
+                final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor( 1 , r -> 
+                {
+                    final Thread t = new Thread( r , "geolocator-hedge-timer" );
+                    t.setDaemon( true );
+                    return t;
+                });
+                timer.setRemoveOnCancelPolicy( true );
+                hedgeTimer = timer;
+            }
+            return hedgeTimer;
+        }
+    }
+    
+    private synchronized void reorder() 
+    {
+        final List<DelegateStatistics<SUBJECT>> current = chain;
+        
+        // only re-arrange delegates with enough samples, the others keep their slots
+        final List<Integer> slots = new ArrayList<>();
+        final List<DelegateStatistics<SUBJECT>> sampled = new ArrayList<>();
+        for ( int i = 0 ; i < current.size() ; i++ ) 
+        {
+            if ( current.get( i ).lookups() >= MIN_SAMPLES ) 
+            {
+                slots.add( i );
+                sampled.add( current.get( i ) );
+            }
+        }
+        sampled.sort( Comparator.comparingDouble( DelegateStatistics::score ) );
+        
+        final List<DelegateStatistics<SUBJECT>> updated = new ArrayList<>( current );
+        for ( int i = 0 ; i < slots.size() ; i++ ) {
+            updated.set( slots.get( i ) , sampled.get( i ) );
+        }
+        if ( ! updated.equals( current ) ) 
+        {
+            System.out.println("Geo locator order changed: "+updated);
+            chain = updated;
+        }
+    }
+    
     @Override
     public GeoLocation<SUBJECT> locate(SUBJECT subject) throws Exception 
     {
-        Optional<IGeoLocator<SUBJECT>> delegate = getAvailable();
+        if ( chaining ) {
+            return locateChained( subject );
+        }
+        Optional<DelegateStatistics<SUBJECT>> delegate = getAvailable();
         if ( ! delegate.isPresent() ) {
             throw new Exception("No geo locators available" ); 
         }
-        return delegate.get().locate( subject );
+        final DelegateStatistics<SUBJECT> stats = delegate.get();
+        final long start = System.nanoTime();
+        try 
+        {
+            final GeoLocation<SUBJECT> result = orEmpty( subject , stats.delegate.locate( subject ) );
+            stats.record( System.nanoTime() - start , result.hasValidCoordinates() );
+            onSuccess( stats );
+            return result;
+        } 
+        catch(Exception e) 
+        {
+            stats.record( System.nanoTime() - start , false );
+            onFailure( stats );
+            throw e;
+        }
+    }
+
+    /**
+     * Asynchronous lookup.
+     * 
+     * <p>Delegates are invoked through their own {@link IGeoLocator#locateAsync(ISubject)}, in chaining mode
+     * the next delegate is tried once the previous one's future completed, so no thread is blocked 
+     * while waiting. Hedged lookups start the next delegate from a timer.</p>
+     */
+    @Override
+    public CompletableFuture<GeoLocation<SUBJECT>> locateAsync(SUBJECT subject) 
+    {
+        if ( chaining ) 
+        {
+            reorderIfNecessary();
+            if ( hedgePercentile > 0 ) {
+                return locateHedgedAsync( subject );
+            }
+            
+            final List<IGeoLocator<SUBJECT>> available = available();
+            final List<DelegateStatistics<SUBJECT>> candidates = new ArrayList<>();
+            for ( DelegateStatistics<SUBJECT> stats : chain ) 
+            {
+                if ( available.contains( stats.delegate ) ) {
+                    candidates.add( stats );
+                }
+            }
+            return locateChainedAsync( subject , candidates.iterator() , null , null );
+        }
+        
+        final Optional<DelegateStatistics<SUBJECT>> delegate = getAvailable();
+        if ( ! delegate.isPresent() ) {
+            return AsyncSupport.failed( new Exception("No geo locators available" ) );
+        }
+        final DelegateStatistics<SUBJECT> stats = delegate.get();
+        final long start = System.nanoTime();
+        return stats.delegate.locateAsync( subject ).thenApply( result -> orEmpty( subject , result ) ).whenComplete( (result,error) -> 
+        {
+            if ( error == null ) 
+            {
+                stats.record( System.nanoTime() - start , result.hasValidCoordinates() );
+                onSuccess( stats );
+            } 
+            else 
+            {
+                stats.record( System.nanoTime() - start , false );
+                onFailure( stats );
+            }
+        });
+    }
+    
+    private CompletableFuture<GeoLocation<SUBJECT>> locateChainedAsync(SUBJECT subject,Iterator<DelegateStatistics<SUBJECT>> candidates,GeoLocation<SUBJECT> lastResult,Throwable lastError) 
+    {
+        while ( candidates.hasNext() ) 
+        {
+            final DelegateStatistics<SUBJECT> stats = candidates.next();
+            if ( ! allowRequest( stats ) ) {
+                continue;
+            }
+            final long start = System.nanoTime();
+            return stats.delegate.locateAsync( subject ).handle( (location,error) -> 
+            {
+                if ( error == null ) 
+                {
+                    final GeoLocation<SUBJECT> result = orEmpty( subject , location );
+                    stats.record( System.nanoTime() - start , result.hasValidCoordinates() );
+                    onSuccess( stats );
+                    if ( result.hasValidCoordinates() ) {
+                        return CompletableFuture.completedFuture( result );
+                    }
+                    return locateChainedAsync( subject , candidates , result , lastError );
+                }
+                final Throwable cause = AsyncSupport.unwrap( error );
+                stats.record( System.nanoTime() - start , false );
+                System.err.println("Locating "+subject+" with "+stats.delegate+" failed: "+cause.getMessage());
+                onFailure( stats );
+                return locateChainedAsync( subject , candidates , lastResult , cause );
+            }).thenCompose( Function.identity() );
+        }
+        if ( lastResult != null ) {
+            return CompletableFuture.completedFuture( lastResult );
+        }
+        return AsyncSupport.failed( lastError != null ? lastError : new Exception("No geo locators available" ) );
     }
 
     @Override
@@ -67,11 +970,19 @@ public class DelegatingGeoLocator<SUBJECT extends ISubject<?>> implements IGeoLo
 
     @Override
     public void dispose() throws Exception {
+        synchronized( HEDGE_TIMER_LOCK ) 
+        {
+            if ( hedgeTimer != null ) 
+            {
+                hedgeTimer.shutdownNow();
+                hedgeTimer = null;
+            }
+        }
         delegates.forEach( d -> { try { d.dispose(); } catch(Exception e) { /* nop */ } } );
     }
 
     @Override
     public boolean isAvailable() {
-        return getAvailable().isPresent();
+        return ! available().isEmpty();
     }
 }
@@ -15,22 +15,17 @@
  */
 package de.codesourcery.geoip.locate;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.URL;
-import java.net.URLConnection;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
-
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.StringSubject;
+import de.codesourcery.geoip.net.JSONFieldReader;
+import de.codesourcery.geoip.net.RateLimiter;
+import de.codesourcery.geoip.net.RestClient;
 
 /**
  * A <code>IGeoLocator</code> that uses the geo-location API at http://freegeoip.net to retrieve data.
@@ -39,46 +34,70 @@ import de.codesourcery.geoip.StringSubject;
  */
 public class FreeGeoIPLocator extends AbstractGeoLocator<StringSubject> 
 {
-	private static final int THROTTLE_MILLIS = 300;
+	// shared by all instances since the provider's quota applies per client
+	private static final RateLimiter DEFAULT_RATE_LIMITER = new RateLimiter( 3 , 3 );
 	
-	private final AtomicLong lastRequestTime = new AtomicLong(0);
+	private static final String DEFAULT_BASE_URL = "http://freegeoip.net/json/";
 	
-	@Override
-	public synchronized GeoLocation<StringSubject> locate(StringSubject ipAddress) throws Exception 
+	private volatile RestClient client = RestClient.getDefault();
+	private volatile String baseURL = DEFAULT_BASE_URL;
+	
+	private volatile RateLimiter rateLimiter = DEFAULT_RATE_LIMITER;
+	
+	/**
+	 * Sets the rate limiter that throttles requests to the web service.
+	 * 
+	 * @param rateLimiter
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) 
 	{
-		final long lastTime = lastRequestTime.get();
-		if ( lastTime != 0 ) 
-		{
-			final long delta = System.currentTimeMillis() - lastTime;
-			if ( delta < 300 ) {
-				try { Thread.sleep(THROTTLE_MILLIS); } catch(Exception e) {};
-			}
+		if ( rateLimiter == null ) {
+			throw new IllegalArgumentException("Rate limiter must not be NULL");
 		}
+		this.rateLimiter = rateLimiter;
+	}
+	
+	/**
+	 * Sets the timeouts used when talking to the web service.
+	 * 
+	 * @param connectTimeoutMillis connect timeout in milliseconds
+	 * @param readTimeoutMillis read timeout in milliseconds
+	 */
+	public void setTimeouts(int connectTimeoutMillis,int readTimeoutMillis) 
+	{
+		this.client = new RestClient( connectTimeoutMillis , readTimeoutMillis );
+	}
+	
+	/**
+	 * Sets the base URL of the web service (default: <code>http://freegeoip.net/json/</code>).
+	 * 
+	 * <p>Mostly useful for pointing this locator at a local stub server.</p>
+	 * 
+	 * @param baseURL
+	 */
+	public void setBaseURL(String baseURL) 
+	{
+		if ( baseURL == null || baseURL.trim().isEmpty() ) {
+			throw new IllegalArgumentException("Base URL must not be NULL/blank");
+		}
+		this.baseURL = baseURL.endsWith("/") ? baseURL : baseURL+"/";
+	}
+	
+	@Override
+	public GeoLocation<StringSubject> locate(StringSubject ipAddress) throws Exception 
+	{
+		rateLimiter.acquire();
 		
-		lastRequestTime.compareAndSet( lastTime ,  System.currentTimeMillis() );
-		
-    	final StringBuilder builder = new StringBuilder();
     	System.out.println("Retrieving location data for "+ipAddress+" ...");
     	
-    	final URL api = new URL("http://freegeoip.net/json/"+ipAddress);
-    	final URLConnection yc = api.openConnection(); 
-        try ( BufferedReader in = new BufferedReader(new InputStreamReader(yc.getInputStream())) ) 
-        {
-        	String inputLine;
-        	while ((inputLine = in.readLine()) != null) 
-        	{
-        		builder.append( inputLine );
-        	}
-        } 
+    	final URL api = new URL( baseURL+URLEncoder.encode( ipAddress.value() , "UTF-8" ) );
         // {"ip":"213.191.64.208","country_code":"DE","country_name":"Germany","region_code":"","region_name":"","city":"","zipcode":"","latitude":51,"longitude":9,"metro_code":"","area_code":""}
+    	final Object[] fields = client.get( api , body -> JSONFieldReader.readFields( body , "city" , "country_name" , "latitude" , "longitude" ) );
         
-        final Map<String, Object> params = parseJSON( builder.toString() );
-        System.out.println("GOT: "+params);
-        
-        String city = objToString( params.get("city") );
-        String country = objToString( params.get("country_name" ) );
-        double latitude = Double.parseDouble( params.get("latitude" ).toString() );
-        double longitude = Double.parseDouble( params.get("longitude" ).toString() );
+        String city = objToString( fields[0] );
+        String country = objToString( fields[1] );
+        double latitude = JSONFieldReader.toDouble( fields[2] , "latitude" );
+        double longitude = JSONFieldReader.toDouble( fields[3] , "longitude" );
         
         if ("Reserved".equals( country ) ) {
         	return new GeoLocation<StringSubject>(ipAddress);
@@ -90,19 +109,6 @@ public class FreeGeoIPLocator extends AbstractGeoLocator<StringSubject>
 		return obj == null ? "" : obj.toString();
 	}
 	
-	private static Map<String,Object> parseJSON(String input) 
-	{
-		Map<String,Object> result = new HashMap<>();
-		JSONObject obj = new JSONObject( new JSONTokener( input ) );
-		for ( String key :  JSONObject.getNames( obj ) ) {
-			Object value = obj.get(key);
-			if ( value != null ) {
-				result.put( key.toLowerCase() , value );
-			}
-		}
-		return result;
-	}
-
     @Override
     public boolean isAvailable() {
         return true;
@@ -15,8 +15,10 @@
  */
 package de.codesourcery.geoip.locate;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.ISubject;
@@ -65,6 +67,35 @@ public interface IGeoLocator<SUBJECT extends ISubject<?>>
 	 */
 	public GeoLocation<SUBJECT> locate(SUBJECT subjects) throws Exception;
 	
+	/**
+	 * Asynchronously retrieve location information associated with a specific subject.
+	 * 
+	 * <p>The default implementation runs {@link #locate(ISubject)} on a bounded pool of threads shared 
+	 * by all locators, implementations that can answer without blocking should override this method.</p>
+	 * 
+	 * @param subject
+	 * @return future that completes with the location or fails with the exception {@link #locate(ISubject)} would have thrown
+	 */
+	public default CompletableFuture<GeoLocation<SUBJECT>> locateAsync(SUBJECT subject) {
+		return AsyncSupport.supplyBlocking( () -> locate( subject ) );
+	}
+	
+	/**
+	 * Asynchronously retrieve location information associated with a collection of subjects.
+	 * 
+	 * @param subjects
+	 * @return one future per subject, in the same order as the input
+	 * @see #locateAsync(ISubject)
+	 */
+	public default List<CompletableFuture<GeoLocation<SUBJECT>>> locateAllAsync(Collection<SUBJECT> subjects) 
+	{
+		final List<CompletableFuture<GeoLocation<SUBJECT>>> result = new ArrayList<>( subjects.size() );
+		for ( SUBJECT subject : subjects ) {
+			result.add( locateAsync( subject ) );
+		}
+		return result;
+	}
+	
 	/**
 	 * Discard any internal caches this implementation may use.
 	 */
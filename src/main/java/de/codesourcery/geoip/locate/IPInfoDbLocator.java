@@ -20,27 +20,68 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.URLEncoder;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicLong;
-
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.StringSubject;
+import de.codesourcery.geoip.net.JSONFieldReader;
+import de.codesourcery.geoip.net.RateLimiter;
+import de.codesourcery.geoip.net.RestClient;
 
 public class IPInfoDbLocator extends AbstractGeoLocator<StringSubject>
 {
     private static final File API_KEY_FILE = new File("ipinfo.apikey");
     
-    private static final int THROTTLE_MILLIS = 300;
+    // shared by all instances since the provider's quota applies per client
+    private static final RateLimiter DEFAULT_RATE_LIMITER = new RateLimiter( 3 , 3 );
+    
+    private static final String DEFAULT_BASE_URL = "http://api.ipinfodb.com/v3/ip-city/";
+    
+    private volatile RestClient client = RestClient.getDefault();
+    private volatile String baseURL = DEFAULT_BASE_URL;
+    
+    private volatile RateLimiter rateLimiter = DEFAULT_RATE_LIMITER;
+    
+    /**
+     * Sets the rate limiter that throttles requests to the web service.
+     * 
+     * @param rateLimiter
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) 
+    {
+        if ( rateLimiter == null ) {
+            throw new IllegalArgumentException("Rate limiter must not be NULL");
+        }
+        this.rateLimiter = rateLimiter;
+    }
     
-    private final AtomicLong lastRequestTime = new AtomicLong(0);
+    /**
+     * Sets the timeouts used when talking to the web service.
+     * 
+     * @param connectTimeoutMillis connect timeout in milliseconds
+     * @param readTimeoutMillis read timeout in milliseconds
+     */
+    public void setTimeouts(int connectTimeoutMillis,int readTimeoutMillis) 
+    {
+        this.client = new RestClient( connectTimeoutMillis , readTimeoutMillis );
+    }
+    
+    /**
+     * Sets the base URL of the web service (default: <code>http://api.ipinfodb.com/v3/ip-city/</code>).
+     * 
+     * <p>Mostly useful for pointing this locator at a local stub server.</p>
+     * 
+     * @param baseURL
+     */
+    public void setBaseURL(String baseURL) 
+    {
+        if ( baseURL == null || baseURL.trim().isEmpty() ) {
+            throw new IllegalArgumentException("Base URL must not be NULL/blank");
+        }
+        this.baseURL = baseURL.endsWith("/") ? baseURL : baseURL+"/";
+    }
     
     @Override
     public boolean isAvailable() 
@@ -74,20 +115,10 @@ public class IPInfoDbLocator extends AbstractGeoLocator<StringSubject>
     }
     
     @Override
-    public synchronized GeoLocation<StringSubject> locate(StringSubject ipAddress) throws Exception 
+    public GeoLocation<StringSubject> locate(StringSubject ipAddress) throws Exception 
     {
-        final long lastTime = lastRequestTime.get();
-        if ( lastTime != 0 ) 
-        {
-            final long delta = System.currentTimeMillis() - lastTime;
-            if ( delta < 300 ) {
-                try { Thread.sleep(THROTTLE_MILLIS); } catch(Exception e) {};
-            }
-        }
+        rateLimiter.acquire();
         
-        lastRequestTime.compareAndSet( lastTime ,  System.currentTimeMillis() );
-        
-        final StringBuilder builder = new StringBuilder();
         System.out.println("Retrieving location data for "+ipAddress+" ...");
         
         final Optional<String> apiKey = getAPIKey();
@@ -95,28 +126,13 @@ public class IPInfoDbLocator extends AbstractGeoLocator<StringSubject>
             throw new RuntimeException("Found no API key in file "+API_KEY_FILE.getAbsolutePath());
         }
         
-        final URL api = new URL("http://api.ipinfodb.com/v3/ip-city/?format=json&key="+apiKey.get()+"&ip="+ipAddress);
-        
-        final URLConnection yc = api.openConnection(); 
-        try ( BufferedReader in = new BufferedReader(new InputStreamReader(yc.getInputStream())) ) 
-        {
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) 
-            {
-                builder.append( inputLine );
-            }
-        } 
-        
-        // {"ip":"213.191.64.208","country_code":"DE","country_name":"Germany","region_code":"","region_name":"","city":"","zipcode":"","latitude":51,"longitude":9,"metro_code":"","area_code":""}
+        final URL api = new URL( baseURL+"?format=json&key="+URLEncoder.encode( apiKey.get() , "UTF-8" )+"&ip="+URLEncoder.encode( ipAddress.value() , "UTF-8" ) );
+        final Object[] fields = client.get( api , body -> JSONFieldReader.readFields( body , "cityName" , "countryName" , "latitude" , "longitude" ) );
         
-        System.out.println("Server returned: "+builder);
-        final Map<String, Object> params = parseJSON( builder.toString() );
-        System.out.println("GOT: "+params);
-        
-        String city = objToString( params.get("cityname") );
-        String country = objToString( params.get("countryname" ) );
-        double latitude = Double.parseDouble( params.get("latitude" ).toString() );
-        double longitude = Double.parseDouble( params.get("longitude" ).toString() );
+        String city = objToString( fields[0] );
+        String country = objToString( fields[1] );
+        double latitude = JSONFieldReader.toDouble( fields[2] , "latitude" );
+        double longitude = JSONFieldReader.toDouble( fields[3] , "longitude" );
         
         if ("Reserved".equals( country ) ) {
             return new GeoLocation<StringSubject>(ipAddress);
@@ -128,18 +144,5 @@ public class IPInfoDbLocator extends AbstractGeoLocator<StringSubject>
     
     private static String objToString(Object obj) {
         return obj == null ? "" : obj.toString();
-    }
-    
-    private static Map<String,Object> parseJSON(String input) 
-    {
-        Map<String,Object> result = new HashMap<>();
-        JSONObject obj = new JSONObject( new JSONTokener( input ) );
-        for ( String key :  JSONObject.getNames( obj ) ) {
-            Object value = obj.get(key);
-            if ( value != null ) {
-                result.put( key.toLowerCase() , value );
-            }
-        }
-        return result;
     }    
 }
\ No newline at end of file
@@ -0,0 +1,692 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+import de.codesourcery.geoip.net.IPAddress;
+import de.codesourcery.geoip.net.NetworkPrefix;
+
+/**
+ * Offline {@link IGeoLocator} that answers lookups from GeoLite2 CSV files.
+ *
+ * <p>The block files (<code>GeoLite2-City-Blocks-IPv4.csv</code>, <code>GeoLite2-City-Blocks-IPv6.csv</code>) are
+ * loaded into sorted arrays of address ranges that get binary-searched, the (optional) location file
+ * (<code>GeoLite2-City-Locations-en.csv</code>) provides city and country names. Locations shared by multiple
+ * ranges are stored only once.</p>
+ *
+ * <p>Data is loaded on the first lookup.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class IntervalTableGeoLocator extends AbstractGeoLocator<StringSubject> {
+
+	private final File ipv4Blocks;
+	private final File ipv6Blocks;
+	private final File locations;
+
+	private final Object TABLE_LOCK = new Object();
+
+	// NULL until loaded
+	private volatile Table table;
+
+	/**
+	 * Create instance.
+	 *
+	 * @param ipv4Blocks IPv4 block file
+	 * @param ipv6Blocks IPv6 block file, may be <code>null</code>
+	 * @param locations location file, may be <code>null</code>
+	 */
+	public IntervalTableGeoLocator(File ipv4Blocks,File ipv6Blocks,File locations)
+	{
+		if ( ipv4Blocks == null ) {
+			throw new IllegalArgumentException("ipv4Blocks must not be NULL");
+		}
+		this.ipv4Blocks = ipv4Blocks;
+		this.ipv6Blocks = ipv6Blocks;
+		this.locations = locations;
+	}
+
+	/**
+	 * Create instance using the default GeoLite2 file names in a given directory.
+	 *
+	 * @param directory
+	 */
+	public IntervalTableGeoLocator(File directory)
+	{
+		this( new File( directory , "GeoLite2-City-Blocks-IPv4.csv" ) ,
+			  new File( directory , "GeoLite2-City-Blocks-IPv6.csv" ) ,
+			  new File( directory , "GeoLite2-City-Locations-en.csv" ) );
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return table != null || ipv4Blocks.exists();
+	}
+
+	private Table getTable() throws IOException
+	{
+		Table result = table;
+		if ( result != null ) {
+			return result;
+		}
+		synchronized( TABLE_LOCK )
+		{
+			if ( table == null )
+			{
+				long time = -System.currentTimeMillis();
+				table = new TableBuilder().load( ipv4Blocks , ipv6Blocks , locations );
+				time += System.currentTimeMillis();
+				System.out.println("Loaded "+table+" ("+time+" ms)");
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Answers lookups of address literals in the calling thread once the tables have been loaded,
+	 * everything else (loading , DNS lookups) runs asynchronously.
+	 */
+	@Override
+	public CompletableFuture<GeoLocation<StringSubject>> locateAsync(StringSubject subject)
+	{
+		if ( table != null && IPAddress.isLiteral( subject.value() ) ) {
+			return AsyncSupport.supplyNow( () -> locate( subject ) );
+		}
+		return super.locateAsync( subject );
+	}
+
+	@Override
+	public GeoLocation<StringSubject> locate(StringSubject subject) throws Exception
+	{
+		final Table t = getTable();
+		
+		// fast path for the common case, doesn't allocate anything except the result
+		final long ipv4 = IPAddress.parseIPv4ToLong( subject.value() );
+		if ( ipv4 != -1 ) {
+			return locateIPv4( t , subject , ipv4 );
+		}
+		
+		byte[] address = IPAddress.parse( subject.value() );
+		if ( address == null ) {
+			address = IPAddress.resolve( subject.value() ).getAddress();
+		}
+		if ( address.length == 4 ) {
+			return locateIPv4( t , subject , toLong( address , 0 , 4 ) );
+		}
+
+		final int row = t.findIPv6( toLong( address , 0 , 8 ) , toLong( address , 8 , 8 ) );
+		if ( row < 0 ) {
+			return new GeoLocation<>( subject );
+		}
+		return toLocation( t , subject , t.v6Location[row] , t.v6Network( row ) );
+	}
+	
+	private static GeoLocation<StringSubject> locateIPv4(Table t,StringSubject subject,long ip) 
+	{
+		final int row = t.findIPv4( ip );
+		if ( row < 0 ) {
+			return new GeoLocation<>( subject );
+		}
+		return toLocation( t , subject , t.v4Location[row] , t.v4Network( row ) );
+	}
+	
+	private static GeoLocation<StringSubject> toLocation(Table t,StringSubject subject,int location,String network) 
+	{
+		final GeoLocation<StringSubject> result = new GeoLocation<>( subject , t.latitude[location] , t.longitude[location] );
+		if ( t.city[location] != null ) {
+			result.setParameter( GeoLocation.KEY_CITY , t.city[location] );
+		}
+		if ( t.country[location] != null ) {
+			result.setParameter( GeoLocation.KEY_COUNTRY , t.country[location] );
+		}
+		if ( network != null ) {
+			result.setParameter( GeoLocation.KEY_NETWORK , network );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the CIDR notation of a range.
+	 *
+	 * @param start start address of the range
+	 * @param sizeMinusOne (end - start) of the range
+	 * @param bits address size in bits
+	 * @return network or <code>null</code> if the range is not a CIDR block
+	 */
+	private static String toNetwork(byte[] start,long sizeMinusOne,int bits)
+	{
+		if ( ( sizeMinusOne & ( sizeMinusOne + 1 ) ) != 0 ) {
+			return null; // not a power of two
+		}
+		final int length = bits - ( 64 - Long.numberOfLeadingZeros( sizeMinusOne ) );
+		return NetworkPrefix.of( start , length ).toString();
+	}
+
+	private static byte[] toBytes(long value,int len)
+	{
+		final byte[] result = new byte[ len ];
+		for ( int i = len - 1 ; i >= 0 ; i-- , value >>>= 8 ) {
+			result[i] = (byte) value;
+		}
+		return result;
+	}
+
+	private static long toLong(byte[] data,int offset,int len)
+	{
+		long result = 0;
+		for ( int i = 0 ; i < len ; i++ ) {
+			result = ( result << 8 ) | ( data[offset+i] & 0xff );
+		}
+		return result;
+	}
+
+	@Override
+	public void flushCaches()
+	{
+		synchronized( TABLE_LOCK ) {
+			table = null;
+		}
+	}
+
+	@Override
+	public void dispose() throws Exception {
+		flushCaches();
+	}
+
+	/**
+	 * Immutable lookup tables.
+	 *
+	 * <p>Ranges are sorted by start address and don't overlap, IPv6 addresses are split into two
+	 * 64-bit halves that need to be compared as unsigned values.</p>
+	 *
+	 * <p>The CIDR notation of a range is created when the range is hit for the first time and then re-used.</p>
+	 */
+	private static final class Table
+	{
+		public final long[] v4Start;
+		public final long[] v4End;
+		public final int[] v4Location;
+
+		public final long[] v6StartHi;
+		public final long[] v6StartLo;
+		public final long[] v6EndHi;
+		public final long[] v6EndLo;
+		public final int[] v6Location;
+
+		public final double[] latitude;
+		public final double[] longitude;
+		public final String[] city;
+		public final String[] country;
+
+		// lazily filled ("" for ranges that are not CIDR blocks), racing threads store equal (immutable) strings so no synchronization is needed
+		private final String[] v4Network;
+		private final String[] v6Network;
+
+		public Table(long[] v4Start, long[] v4End, int[] v4Location,
+				long[] v6StartHi, long[] v6StartLo, long[] v6EndHi, long[] v6EndLo, int[] v6Location,
+				double[] latitude, double[] longitude, String[] city, String[] country)
+		{
+			this.v4Start = v4Start;
+			this.v4End = v4End;
+			this.v4Location = v4Location;
+			this.v6StartHi = v6StartHi;
+			this.v6StartLo = v6StartLo;
+			this.v6EndHi = v6EndHi;
+			this.v6EndLo = v6EndLo;
+			this.v6Location = v6Location;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.city = city;
+			this.country = country;
+			this.v4Network = new String[ v4Start.length ];
+			this.v6Network = new String[ v6StartHi.length ];
+		}
+
+		/**
+		 * @return CIDR notation of an IPv4 range or <code>null</code> if the range is not a CIDR block
+		 */
+		public String v4Network(int row)
+		{
+			String result = v4Network[row];
+			if ( result == null )
+			{
+				result = toNetwork( toBytes( v4Start[row] , 4 ) , v4End[row] - v4Start[row] , 32 );
+				v4Network[row] = result == null ? "" : result;
+			}
+			return result == null || result.isEmpty() ? null : result;
+		}
+
+		/**
+		 * @return CIDR notation of an IPv6 range or <code>null</code> if the range is not a CIDR block
+		 */
+		public String v6Network(int row)
+		{
+			String result = v6Network[row];
+			if ( result == null )
+			{
+				final byte[] start = new byte[16];
+				System.arraycopy( toBytes( v6StartHi[row] , 8 ) , 0 , start , 0 , 8 );
+				System.arraycopy( toBytes( v6StartLo[row] , 8 ) , 0 , start , 8 , 8 );
+				if ( v6StartHi[row] == v6EndHi[row] ) {
+					result = toNetwork( start , v6EndLo[row] - v6StartLo[row] , 128 );
+				} else if ( v6StartLo[row] == 0 && v6EndLo[row] == -1L ) {
+					result = toNetwork( start , v6EndHi[row] - v6StartHi[row] , 64 );
+				}
+				v6Network[row] = result == null ? "" : result;
+			}
+			return result == null || result.isEmpty() ? null : result;
+		}
+
+		/**
+		 * @return row index or -1
+		 */
+		public int findIPv4(long ip)
+		{
+			int low = 0;
+			int high = v4Start.length - 1;
+			int candidate = -1;
+			while ( low <= high )
+			{
+				final int mid = ( low + high ) >>> 1;
+				if ( v4Start[mid] <= ip ) {
+					candidate = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return candidate != -1 && ip <= v4End[candidate] ? candidate : -1;
+		}
+
+		/**
+		 * @return row index or -1
+		 */
+		public int findIPv6(long hi,long lo)
+		{
+			int low = 0;
+			int high = v6StartHi.length - 1;
+			int candidate = -1;
+			while ( low <= high )
+			{
+				final int mid = ( low + high ) >>> 1;
+				if ( compare( v6StartHi[mid] , v6StartLo[mid] , hi , lo ) <= 0 ) {
+					candidate = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return candidate != -1 && compare( hi , lo , v6EndHi[candidate] , v6EndLo[candidate] ) <= 0 ? candidate : -1;
+		}
+
+		private static int compare(long hi1,long lo1,long hi2,long lo2)
+		{
+			final int result = Long.compareUnsigned( hi1 , hi2 );
+			return result != 0 ? result : Long.compareUnsigned( lo1 , lo2 );
+		}
+
+		@Override
+		public String toString() {
+			return v4Start.length+" IPv4 ranges, "+v6StartHi.length+" IPv6 ranges, "+latitude.length+" distinct locations";
+		}
+	}
+
+	/**
+	 * Reads CSV files into a {@link Table}.
+	 */
+	private static final class TableBuilder
+	{
+		// geoname_id -> [ city , country ]
+		private final Map<String,String[]> names = new HashMap<>();
+
+		// deduplication of locations
+		private final Map<LocationKey,Integer> locationIndex = new HashMap<>();
+		private final List<LocationKey> locationList = new ArrayList<>();
+
+		private long[] v4Start = new long[1024];
+		private long[] v4End = new long[1024];
+		private int[] v4Location = new int[1024];
+		private int v4Count;
+
+		private long[] v6StartHi = new long[1024];
+		private long[] v6StartLo = new long[1024];
+		private long[] v6EndHi = new long[1024];
+		private long[] v6EndLo = new long[1024];
+		private int[] v6Location = new int[1024];
+		private int v6Count;
+
+		private static final class LocationKey
+		{
+			public final double latitude;
+			public final double longitude;
+			public final String geonameId;
+
+			public LocationKey(double latitude, double longitude, String geonameId) {
+				this.latitude = latitude;
+				this.longitude = longitude;
+				this.geonameId = geonameId;
+			}
+
+			@Override
+			public boolean equals(Object obj)
+			{
+				if ( obj instanceof LocationKey )
+				{
+					final LocationKey other = (LocationKey) obj;
+					return Double.compare( latitude , other.latitude ) == 0 && Double.compare( longitude , other.longitude ) == 0 &&
+							geonameId.equals( other.geonameId );
+				}
+				return false;
+			}
+
+			@Override
+			public int hashCode() {
+				return 31 * ( 31 * Double.hashCode( latitude ) + Double.hashCode( longitude ) ) + geonameId.hashCode();
+			}
+		}
+
+		public Table load(File ipv4Blocks,File ipv6Blocks,File locations) throws IOException
+		{
+			if ( locations != null && locations.exists() ) {
+				readLocations( locations );
+			}
+			readBlocks( ipv4Blocks );
+			if ( ipv6Blocks != null && ipv6Blocks.exists() ) {
+				readBlocks( ipv6Blocks );
+			}
+			return build();
+		}
+
+		private void readLocations(File file) throws IOException
+		{
+			readCSV( file , ( header , row ) ->
+			{
+				final String id = field( header , row , "geoname_id" );
+				if ( id != null ) {
+					names.put( id , new String[] { field( header , row , "city_name" ) , field( header , row , "country_name" ) } );
+				}
+			});
+		}
+
+		private void readBlocks(File file) throws IOException
+		{
+			readCSV( file , ( header , row ) ->
+			{
+				final String network = field( header , row , "network" );
+				final String latitude = field( header , row , "latitude" );
+				final String longitude = field( header , row , "longitude" );
+				if ( network == null || latitude == null || longitude == null ) {
+					return;
+				}
+				String geonameId = field( header , row , "geoname_id" );
+				if ( geonameId == null ) {
+					geonameId = field( header , row , "registered_country_geoname_id" );
+				}
+				addRange( network , location( Double.parseDouble( latitude ) , Double.parseDouble( longitude ) , geonameId == null ? "" : geonameId ) );
+			});
+		}
+
+		private int location(double latitude,double longitude,String geonameId)
+		{
+			final LocationKey key = new LocationKey( latitude , longitude , geonameId );
+			Integer index = locationIndex.get( key );
+			if ( index == null )
+			{
+				index = locationList.size();
+				locationList.add( key );
+				locationIndex.put( key , index );
+			}
+			return index;
+		}
+
+		private void addRange(String network,int location) throws IOException
+		{
+			final int slash = network.indexOf( '/' );
+			final byte[] address = slash == -1 ? null : IPAddress.parse( network.substring( 0 , slash ) );
+			if ( address == null ) {
+				throw new IOException("Malformed network: "+network);
+			}
+			final int length = Integer.parseInt( network.substring( slash+1 ) );
+			if ( address.length == 4 )
+			{
+				final long start = toLong( address , 0 , 4 ) & ~hostMask( 32 - length );
+				if ( v4Count == v4Start.length )
+				{
+					v4Start = Arrays.copyOf( v4Start , v4Count * 2 );
+					v4End = Arrays.copyOf( v4End , v4Count * 2 );
+					v4Location = Arrays.copyOf( v4Location , v4Count * 2 );
+				}
+				v4Start[v4Count] = start;
+				v4End[v4Count] = start | hostMask( 32 - length );
+				v4Location[v4Count++] = location;
+				return;
+			}
+
+			final long hostMaskHi = hostMask( Math.max( 0 , 64 - length ) );
+			final long hostMaskLo = hostMask( Math.min( 64 , 128 - length ) );
+			final long startHi = toLong( address , 0 , 8 ) & ~hostMaskHi;
+			final long startLo = toLong( address , 8 , 8 ) & ~hostMaskLo;
+			if ( v6Count == v6StartHi.length )
+			{
+				v6StartHi = Arrays.copyOf( v6StartHi , v6Count * 2 );
+				v6StartLo = Arrays.copyOf( v6StartLo , v6Count * 2 );
+				v6EndHi = Arrays.copyOf( v6EndHi , v6Count * 2 );
+				v6EndLo = Arrays.copyOf( v6EndLo , v6Count * 2 );
+				v6Location = Arrays.copyOf( v6Location , v6Count * 2 );
+			}
+			v6StartHi[v6Count] = startHi;
+			v6StartLo[v6Count] = startLo;
+			v6EndHi[v6Count] = startHi | hostMaskHi;
+			v6EndLo[v6Count] = startLo | hostMaskLo;
+			v6Location[v6Count++] = location;
+		}
+
+		private static long hostMask(int hostBits) {
+			return hostBits >= 64 ? -1L : ( 1L << hostBits ) - 1;
+		}
+
+		private Table build()
+		{
+			sortIPv4();
+			sortIPv6();
+
+			final int locationCount = locationList.size();
+			final double[] latitude = new double[ locationCount ];
+			final double[] longitude = new double[ locationCount ];
+			final String[] city = new String[ locationCount ];
+			final String[] country = new String[ locationCount ];
+
+			// intern names, lots of locations share the same country
+			final Map<String,String> strings = new HashMap<>();
+			for ( int i = 0 ; i < locationCount ; i++ )
+			{
+				final LocationKey key = locationList.get( i );
+				latitude[i] = key.latitude;
+				longitude[i] = key.longitude;
+				final String[] name = names.get( key.geonameId );
+				if ( name != null )
+				{
+					city[i] = name[0] == null ? null : strings.computeIfAbsent( name[0] , s -> s );
+					country[i] = name[1] == null ? null : strings.computeIfAbsent( name[1] , s -> s );
+				}
+			}
+			return new Table( Arrays.copyOf( v4Start , v4Count ) , Arrays.copyOf( v4End , v4Count ) , Arrays.copyOf( v4Location , v4Count ) ,
+					Arrays.copyOf( v6StartHi , v6Count ) , Arrays.copyOf( v6StartLo , v6Count ) ,
+					Arrays.copyOf( v6EndHi , v6Count ) , Arrays.copyOf( v6EndLo , v6Count ) , Arrays.copyOf( v6Location , v6Count ) ,
+					latitude , longitude , city , country );
+		}
+
+		private void sortIPv4()
+		{
+			// pack start address (32 bits) and row index into a single long so a primitive sort can be used,
+			// flipping the sign bit makes the signed sort order match the unsigned order of addresses
+			final long[] keys = new long[ v4Count ];
+			for ( int i = 0 ; i < v4Count ; i++ ) {
+				keys[i] = ( ( v4Start[i] << 32 ) | i ) ^ Long.MIN_VALUE;
+			}
+			Arrays.sort( keys );
+
+			final long[] start = new long[ v4Count ];
+			final long[] end = new long[ v4Count ];
+			final int[] location = new int[ v4Count ];
+			for ( int i = 0 ; i < v4Count ; i++ )
+			{
+				final int row = (int) keys[i];
+				start[i] = v4Start[row];
+				end[i] = v4End[row];
+				location[i] = v4Location[row];
+			}
+			v4Start = start;
+			v4End = end;
+			v4Location = location;
+		}
+
+		private void sortIPv6()
+		{
+			boolean sorted = true;
+			for ( int i = 1 ; sorted && i < v6Count ; i++ ) {
+				sorted = Table.compare( v6StartHi[i-1] , v6StartLo[i-1] , v6StartHi[i] , v6StartLo[i] ) <= 0;
+			}
+			if ( sorted ) {
+				return; // GeoLite2 files are already sorted
+			}
+
+			final Integer[] rows = new Integer[ v6Count ];
+			for ( int i = 0 ; i < v6Count ; i++ ) {
+				rows[i] = i;
+			}
+			Arrays.sort( rows , (a,b) -> Table.compare( v6StartHi[a] , v6StartLo[a] , v6StartHi[b] , v6StartLo[b] ) );
+
+			final long[] startHi = new long[ v6Count ];
+			final long[] startLo = new long[ v6Count ];
+			final long[] endHi = new long[ v6Count ];
+			final long[] endLo = new long[ v6Count ];
+			final int[] location = new int[ v6Count ];
+			for ( int i = 0 ; i < v6Count ; i++ )
+			{
+				final int row = rows[i];
+				startHi[i] = v6StartHi[row];
+				startLo[i] = v6StartLo[row];
+				endHi[i] = v6EndHi[row];
+				endLo[i] = v6EndLo[row];
+				location[i] = v6Location[row];
+			}
+			v6StartHi = startHi;
+			v6StartLo = startLo;
+			v6EndHi = endHi;
+			v6EndLo = endLo;
+			v6Location = location;
+		}
+
+		private interface IRowHandler
+		{
+			public void handle(Map<String,Integer> header,List<String> row) throws IOException;
+		}
+
+		private static String field(Map<String,Integer> header,List<String> row,String name)
+		{
+			final Integer index = header.get( name );
+			if ( index == null || index >= row.size() ) {
+				return null;
+			}
+			final String value = row.get( index );
+			return value.isEmpty() ? null : value;
+		}
+
+		private static void readCSV(File file,IRowHandler handler) throws IOException
+		{
+			try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ) , StandardCharsets.UTF_8 ) ) )
+			{
+				String line = reader.readLine();
+				if ( line == null ) {
+					return;
+				}
+				final Map<String,Integer> header = new HashMap<>();
+				final List<String> columns = parseLine( line );
+				for ( int i = 0 ; i < columns.size() ; i++ ) {
+					header.put( columns.get( i ).trim() , i );
+				}
+
+				int lineNo = 1;
+				while ( ( line = reader.readLine() ) != null )
+				{
+					lineNo++;
+					if ( line.isEmpty() ) {
+						continue;
+					}
+					try {
+						handler.handle( header , parseLine( line ) );
+					}
+					catch(RuntimeException e) {
+						throw new IOException( "Malformed line "+lineNo+" in "+file+": "+e.getMessage() , e );
+					}
+				}
+			}
+		}
+
+		private static List<String> parseLine(String line)
+		{
+			final List<String> result = new ArrayList<>();
+			final StringBuilder current = new StringBuilder();
+			boolean quoted = false;
+			for ( int i = 0 , len = line.length() ; i < len ; i++ )
+			{
+				final char c = line.charAt( i );
+				if ( quoted )
+				{
+					if ( c == '"' )
+					{
+						if ( i+1 < len && line.charAt( i+1 ) == '"' ) {
+							current.append( '"' );
+							i++;
+						} else {
+							quoted = false;
+						}
+					} else {
+						current.append( c );
+					}
+				}
+				else if ( c == '"' ) {
+					quoted = true;
+				}
+				else if ( c == ',' )
+				{
+					result.add( current.toString() );
+					current.setLength( 0 );
+				}
+				else {
+					current.append( c );
+				}
+			}
+			result.add( current.toString() );
+			return result;
+		}
+	}
+}
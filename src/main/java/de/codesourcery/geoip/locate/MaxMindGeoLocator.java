@@ -15,10 +15,13 @@
  */
 package de.codesourcery.geoip.locate;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.maxmind.db.Reader.FileMode;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.AddressNotFoundException;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
@@ -26,20 +29,114 @@ import com.maxmind.geoip2.model.CityResponse;
 
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.StringSubject;
+import de.codesourcery.geoip.net.IPAddress;
 
+/**
+ * {@link IGeoLocator} backed by a MaxMind GeoIP2/GeoLite2 City database.
+ * 
+ * <p>The database is either read from the classpath (<code>/GeoLite2-City.mmdb</code>), which loads the whole 
+ * file onto the heap, or memory-mapped from a file on the local filesystem.</p>
+ * 
+ * <p>Lookups don't acquire any locks once the database has been opened.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
 public class MaxMindGeoLocator extends AbstractGeoLocator<StringSubject> {
 
+	/**
+	 * System property holding the path of a database file to use instead of the classpath resource.
+	 */
+	public static final String DATABASE_FILE_PROPERTY = "geoip.maxmind.database";
+	
 	private static final String classpath = "/GeoLite2-City.mmdb";
 	
 	private final Object READER_LOCK = new Object();
-	private DatabaseReader reader;
 	
-	public MaxMindGeoLocator() {
+	// NULL until opened, only written while holding READER_LOCK
+	private volatile ReaderHandle handle;
+	
+	// NULL if the database should be loaded from the classpath
+	private final File databaseFile;
+	
+	/**
+	 * Create instance using the database file specified by the {@link #DATABASE_FILE_PROPERTY} 
+	 * system property or, if this property is not set, the database on the classpath.
+	 */
+	public MaxMindGeoLocator() 
+	{
+		final String path = System.getProperty( DATABASE_FILE_PROPERTY );
+		this.databaseFile = path == null || path.trim().isEmpty() ? null : new File( path.trim() );
+	}
+	
+	/**
+	 * Create instance that memory-maps a database file.
+	 * 
+	 * @param databaseFile
+	 */
+	public MaxMindGeoLocator(File databaseFile) 
+	{
+		if ( databaseFile == null ) {
+			throw new IllegalArgumentException("databaseFile must not be NULL");
+		}
+		this.databaseFile = databaseFile;
+	}
+	
+	/**
+	 * An open database along with a reference count.
+	 * 
+	 * <p>The locator itself holds one reference until it gets disposed, each lookup holds another one 
+	 * while it's using the database. The database gets closed when the last reference is released.</p>
+	 */
+	private static final class ReaderHandle 
+	{
+		public final DatabaseReader reader;
+		private final AtomicInteger references = new AtomicInteger( 1 );
+		
+		public ReaderHandle(DatabaseReader reader) {
+			this.reader = reader;
+		}
+		
+		/**
+		 * Acquires a reference.
+		 * 
+		 * @return <code>false</code> if the database has already been closed
+		 */
+		public boolean acquire() 
+		{
+			while ( true ) 
+			{
+				final int current = references.get();
+				if ( current == 0 ) {
+					return false;
+				}
+				if ( references.compareAndSet( current , current + 1 ) ) {
+					return true;
+				}
+			}
+		}
+		
+		public void release() 
+		{
+			if ( references.decrementAndGet() == 0 ) 
+			{
+				try {
+					reader.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close MaxMind database: "+e.getMessage());
+				}
+			}
+		}
 	}
 	
 	@Override
 	public boolean isAvailable() 
 	{
+		if ( handle != null ) {
+			return true; // database already opened
+		}
+		if ( databaseFile != null ) {
+			return databaseFile.canRead();
+		}
 		final InputStream stream = MaxMindGeoLocator.class.getResourceAsStream( classpath );
 		if ( stream == null ) {
 			return false;
@@ -48,28 +145,63 @@ public class MaxMindGeoLocator extends AbstractGeoLocator<StringSubject> {
 		return true;
 	}
 	
-	protected synchronized DatabaseReader getReader() throws IOException 
+	protected DatabaseReader getReader() throws IOException 
+	{
+		return getHandle().reader;
+	}
+	
+	private ReaderHandle getHandle() throws IOException 
 	{
+		final ReaderHandle existing = handle;
+		if ( existing != null ) {
+			return existing;
+		}
+		
 		synchronized (READER_LOCK) 
 		{
-			if ( reader != null ) {
-				return reader;
+			if ( handle != null ) {
+				return handle;
+			}
+			
+			if ( databaseFile != null ) 
+			{
+				// pages are loaded on demand and shared with other processes mapping the same file
+				handle = new ReaderHandle( new DatabaseReader.Builder( databaseFile ).fileMode( FileMode.MEMORY_MAPPED ).build() );
+				return handle;
 			}
 			
 			final InputStream stream = MaxMindGeoLocator.class.getResourceAsStream( classpath );
 			if ( stream == null ) {
 				throw new IOException("Failed to open classpath resource "+classpath);
 			}
-			reader = new DatabaseReader.Builder(stream).build();
-			return reader;
+			handle = new ReaderHandle( new DatabaseReader.Builder(stream).build() );
+			return handle;
 		} 
 	}
 
 	@Override
 	public GeoLocation<StringSubject> locate(StringSubject subjects) throws Exception 
+	{
+		final InetAddress address = IPAddress.resolve( subjects.value() );
+		while ( true ) 
+		{
+			final ReaderHandle current = getHandle();
+			if ( ! current.acquire() ) {
+				continue; // disposed concurrently, re-open
+			}
+			try {
+				return locate( subjects , address , current.reader );
+			} 
+			finally {
+				current.release();
+			}
+		}
+	}
+	
+	private GeoLocation<StringSubject> locate(StringSubject subjects,InetAddress address,DatabaseReader reader) throws Exception 
 	{
 		try {
-			final CityResponse response = getReader().city( InetAddress.getByName( subjects.value() ) );
+			final CityResponse response = reader.city( address );
 			final GeoLocation<StringSubject> result = new GeoLocation<>(subjects,
 						response.getLocation().getLatitude(),
 						response.getLocation().getLongitude() );
@@ -92,19 +224,22 @@ public class MaxMindGeoLocator extends AbstractGeoLocator<StringSubject> {
 		}
 	}
 
+	/**
+	 * Closes the database once all lookups currently using it have finished.
+	 * 
+	 * <p>Lookups issued after this method has been called will re-open the database.</p>
+	 */
 	@Override
 	public void dispose() throws Exception 
 	{
+		final ReaderHandle current;
 		synchronized (READER_LOCK) 
 		{
-			try 
-			{
-				if ( reader != null ) {
-					reader.close();
-				}
-			} finally {
-				reader = null;
-			}
+			current = handle;
+			handle = null;
+		}
+		if ( current != null ) {
+			current.release(); // closes the database once in-flight lookups are done
 		}
 	}
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base-class for eviction policies that keep their bookkeeping data in non-thread-safe
+ * data structures guarded by a single lock.
+ * 
+ * <p>Accesses are recorded into a lossy {@link ReadBuffer} and replayed 
+ * while holding the lock, so {@link #recordAccess(Object)} never blocks.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <K>
+ */
+public abstract class AbstractEvictionPolicy<K> implements IEvictionPolicy<K> 
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer<K> readBuffer = new ReadBuffer<>();
+    
+    @Override
+    public final void recordAccess(K key) 
+    {
+        if ( readBuffer.offer( key ) && lock.tryLock() ) 
+        {
+            try {
+                readBuffer.drainTo( this::onAccess );
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public final void recordInsertion(K key) 
+    {
+        lock.lock();
+        try {
+            readBuffer.drainTo( this::onAccess );
+            onInsertion( key );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public final void recordRemoval(K key) 
+    {
+        lock.lock();
+        try {
+            onRemoval( key );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public final K selectVictim(K candidate) 
+    {
+        lock.lock();
+        try {
+            readBuffer.drainTo( this::onAccess );
+            return doSelectVictim( candidate );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public final void clear() 
+    {
+        lock.lock();
+        try {
+            readBuffer.drainTo( key -> {} );
+            onClear();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /*
+     * Methods below are always invoked while holding the lock.
+     */
+    
+    protected abstract void onAccess(K key);
+    
+    protected abstract void onInsertion(K key);
+
+    protected abstract void onRemoval(K key);
+    
+    protected abstract K doSelectVictim(K candidate);
+    
+    protected abstract void onClear();
+}
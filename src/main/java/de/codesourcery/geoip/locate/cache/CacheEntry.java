@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.lang.reflect.Constructor;
+
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.ISubject;
+
+/**
+ * A cached {@link GeoLocation} along with the time it was retrieved.
+ * 
+ * <p>The location is always {@link GeoLocation#freeze() frozen} so it can be handed out without copying.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <SUBJECT>
+ */
+public final class CacheEntry<SUBJECT extends ISubject<?>> 
+{
+    private final GeoLocation<SUBJECT> location;
+    private final long creationTime;
+    
+    /**
+     * Create instance.
+     * 
+     * @param location location, gets frozen if it isn't already 
+     * @param creationTime time this location was retrieved (milliseconds since the epoch)
+     */
+    public CacheEntry(GeoLocation<SUBJECT> location, long creationTime) 
+    {
+        if ( location == null ) {
+            throw new IllegalArgumentException("location must not be NULL");
+        }
+        this.location = location.freeze();
+        this.creationTime = creationTime;
+    }
+    
+    public GeoLocation<SUBJECT> location() {
+        return location;
+    }
+    
+    public SUBJECT subject() {
+        return location.subject();
+    }
+    
+    /**
+     * Returns the time this location was retrieved.
+     * 
+     * @return milliseconds since the epoch
+     */
+    public long creationTime() {
+        return creationTime;
+    }
+    
+    /**
+     * Returns whether this entry is older than a given time-to-live.
+     * 
+     * @param now current time (milliseconds since the epoch)
+     * @param timeToLiveMillis time-to-live in milliseconds, {@link Long#MAX_VALUE} means 'never expires'
+     * @return
+     */
+    public boolean isOlderThan(long now,long timeToLiveMillis) 
+    {
+        return timeToLiveMillis != Long.MAX_VALUE && now - creationTime >= timeToLiveMillis;
+    }
+    
+    /**
+     * Serialize this instance as a JSON string.
+     * 
+     * @param writer
+     */
+    public void toJSON(JSONWriter writer) 
+    {
+        writer.object().key("created").value( creationTime ).key("location");
+        location.toJSON( writer );
+        writer.endObject();
+    }
+    
+    /**
+     * Deserialize a <code>CacheEntry</code> from a JSON string.
+     * 
+     * <p>Plain {@link GeoLocation} JSON objects (as written by older versions) are 
+     * also accepted and get assigned <code>defaultCreationTime</code>.</p>
+     * 
+     * @param obj
+     * @param constructor
+     * @param defaultCreationTime
+     * @return
+     */
+    public static <T extends ISubject<?>> CacheEntry<T> fromJSON(JSONObject obj,Constructor<T> constructor,long defaultCreationTime) 
+    {
+        if ( obj.has("location") ) {
+            return new CacheEntry<>( GeoLocation.fromJSON( obj.getJSONObject("location" ) , constructor ) , obj.getLong("created") );
+        }
+        return new CacheEntry<>( GeoLocation.fromJSON( obj , constructor ) , defaultCreationTime );
+    }
+    
+    @Override
+    public String toString() {
+        return location+" [ created: "+creationTime+" ]";
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.ISubject;
+
+/**
+ * Compact binary encoding of {@link CacheEntry} instances.
+ * 
+ * <p>Layout:</p>
+ * <pre>
+ * long    creation time
+ * UTF     subject (JSON)
+ * boolean has valid coordinates
+ * double  latitude
+ * double  longitude
+ * short   parameter count
+ * [ UTF key , byte type , value ]*
+ * </pre>
+ * 
+ * <p>Parameter types use the same type codes as the JSON representation of {@link GeoLocation}. Parameters
+ * with a <code>null</code> value are omitted (just like in the JSON representation).</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class CacheEntryCodec 
+{
+    private CacheEntryCodec() {
+    }
+    
+    public static void write(CacheEntry<?> entry,DataOutput out) throws IOException 
+    {
+        final GeoLocation<?> location = entry.location();
+        out.writeLong( entry.creationTime() );
+        out.writeUTF( subjectToString( location.subject() ) );
+        out.writeBoolean( location.hasValidCoordinates() );
+        out.writeDouble( location.latitude() );
+        out.writeDouble( location.longitude() );
+        
+        final Map<String, Object> params = location.parameters();
+        int count = 0;
+        for ( Object value : params.values() ) 
+        {
+            if ( value != null ) {
+                count++;
+            }
+        }
+        out.writeShort( count );
+        for ( Map.Entry<String,Object> param : params.entrySet() ) 
+        {
+            final Object value = param.getValue();
+            if ( value == null ) {
+                continue;
+            }
+            out.writeUTF( param.getKey() );
+            if ( value instanceof Long ) {
+                out.writeByte( 'l' );
+                out.writeLong( (Long) value );
+            } else if ( value instanceof Integer ) {
+                out.writeByte( 'i' );
+                out.writeInt( (Integer) value );
+            } else if ( value instanceof String ) {
+                out.writeByte( 's' );
+                out.writeUTF( (String) value );
+            } else if ( value instanceof Double ) {
+                out.writeByte( 'd' );
+                out.writeDouble( (Double) value );
+            } else if ( value instanceof Float ) {
+                out.writeByte( 'f' );
+                out.writeFloat( (Float) value );
+            } else {
+                throw new IOException("Don't know how to serialize "+value);
+            }
+        }
+    }
+    
+    public static <T extends ISubject<?>> CacheEntry<T> read(DataInput in,Constructor<T> constructor) throws IOException 
+    {
+        final long creationTime = in.readLong();
+        final T subject = subjectFromString( in.readUTF() , constructor );
+        final boolean isValid = in.readBoolean();
+        final double latitude = in.readDouble();
+        final double longitude = in.readDouble();
+        
+        final GeoLocation.Builder<T> location = GeoLocation.builder( subject ).coordinate( latitude , longitude ).valid( isValid );
+        
+        final int paramCount = in.readUnsignedShort();
+        for ( int i = 0 ; i < paramCount ; i++ ) 
+        {
+            final String key = in.readUTF();
+            final int type = in.readByte();
+            final Object value;
+            switch( type ) 
+            {
+                case 'l': value = in.readLong(); break;
+                case 'i': value = in.readInt(); break;
+                case 's': value = in.readUTF(); break;
+                case 'd': value = in.readDouble(); break;
+                case 'f': value = in.readFloat(); break;
+                default:
+                    throw new IOException("Unhandled parameter type: "+type);
+            }
+            location.parameter( key , value );
+        }
+        return new CacheEntry<>( location.build() , creationTime );
+    }
+    
+    /**
+     * Returns the JSON representation of a subject.
+     * 
+     * @param subject
+     * @return
+     */
+    public static String subjectToString(ISubject<?> subject) 
+    {
+        final StringWriter writer = new StringWriter();
+        subject.toJSON( new JSONWriter( writer ) );
+        return writer.toString();
+    }
+    
+    private static <T extends ISubject<?>> T subjectFromString(String json,Constructor<T> constructor) throws IOException 
+    {
+        final T subject;
+        try {
+            subject = constructor.newInstance();
+        } catch (Exception e) {
+            throw new IOException("Failed to instantiate "+constructor,e);
+        }
+        subject.fromJSON( new JSONObject( json ) );
+        return subject;
+    }
+}
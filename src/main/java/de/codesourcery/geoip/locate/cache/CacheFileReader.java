@@ -0,0 +1,159 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import de.codesourcery.geoip.ISubject;
+
+/**
+ * Streaming reader for JSON cache files (a JSON array of {@link CacheEntry} objects).
+ *
+ * <p>The array is never materialized as a whole. Entries are tokenized one at a time and
+ * handed to the common fork-join pool in batches to be converted into {@link CacheEntry} instances,
+ * the number of batches waiting for conversion is bounded so memory usage stays proportional to
+ * the number of entries read.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <SUBJECT>
+ */
+public final class CacheFileReader<SUBJECT extends ISubject<?>>
+{
+    private static final int BATCH_SIZE = 1024;
+
+    private final Constructor<SUBJECT> constructor;
+    private final long defaultCreationTime;
+
+    /**
+     * Create instance.
+     *
+     * @param constructor
+     * @param defaultCreationTime creation time assigned to entries written by older versions
+     * @see CacheEntry#fromJSON(JSONObject, Constructor, long)
+     */
+    public CacheFileReader(Constructor<SUBJECT> constructor,long defaultCreationTime)
+    {
+        this.constructor = constructor;
+        this.defaultCreationTime = defaultCreationTime;
+    }
+
+    /**
+     * Reads all entries.
+     *
+     * @param in
+     * @param consumer invoked for every entry, <b>must be thread-safe</b> as it's invoked concurrently
+     * from multiple threads
+     * @throws IOException
+     */
+    public void read(InputStream in,Consumer<CacheEntry<SUBJECT>> consumer) throws IOException
+    {
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        final Semaphore pendingBatches = new Semaphore( 2 * parallelism );
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        try
+        {
+            final JSONTokener tokener = new JSONTokener( in );
+            if ( tokener.nextClean() != '[' ) {
+                throw tokener.syntaxError("A JSONArray text must start with '['");
+            }
+
+            List<JSONObject> batch = new ArrayList<>( BATCH_SIZE );
+            char c = tokener.nextClean();
+            while ( c != ']' )
+            {
+                tokener.back();
+                batch.add( new JSONObject( tokener ) );
+                if ( batch.size() == BATCH_SIZE )
+                {
+                    futures.add( submit( batch , consumer , pendingBatches ) );
+                    futures.removeIf( f -> f.isDone() && ! f.isCompletedExceptionally() );
+                    batch = new ArrayList<>( BATCH_SIZE );
+                }
+
+                c = tokener.nextClean();
+                if ( c == ',' ) {
+                    c = tokener.nextClean();
+                } else if ( c != ']' ) {
+                    throw tokener.syntaxError("Expected ',' or ']'");
+                }
+            }
+
+            // no need to involve other threads for small files
+            convert( batch , consumer );
+
+            for ( CompletableFuture<Void> future : futures ) {
+                future.join();
+            }
+        }
+        catch(JSONException e) {
+            throw new IOException( "Malformed cache file: "+e.getMessage() , e );
+        }
+        catch(CompletionException e)
+        {
+            if ( e.getCause() instanceof JSONException ) {
+                throw new IOException( "Malformed cache file: "+e.getCause().getMessage() , e.getCause() );
+            }
+            throw e;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while reading cache file" , e );
+        }
+        finally
+        {
+            // make sure no conversion is still running when we return (or fail)
+            for ( CompletableFuture<Void> future : futures ) {
+                future.handle( (result,error) -> null ).join();
+            }
+        }
+    }
+
+    private CompletableFuture<Void> submit(List<JSONObject> batch,Consumer<CacheEntry<SUBJECT>> consumer,Semaphore pendingBatches) throws InterruptedException
+    {
+        pendingBatches.acquire();
+        try {
+            return CompletableFuture.runAsync( () -> convert( batch , consumer ) ).whenComplete( (result,error) -> pendingBatches.release() );
+        }
+        catch(RuntimeException e)
+        {
+            pendingBatches.release();
+            throw e;
+        }
+    }
+
+    private void convert(List<JSONObject> batch,Consumer<CacheEntry<SUBJECT>> consumer)
+    {
+        for ( JSONObject obj : batch ) {
+            consumer.accept( CacheEntry.fromJSON( obj , constructor , defaultCreationTime ) );
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative cache statistics.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class CacheStatistics 
+{
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    public void recordHit() {
+        hits.increment();
+    }
+    
+    public void recordMiss() {
+        misses.increment();
+    }
+    
+    public void recordEviction() {
+        evictions.increment();
+    }
+    
+    public long hitCount() {
+        return hits.sum();
+    }
+    
+    public long missCount() {
+        return misses.sum();
+    }
+    
+    public long evictionCount() {
+        return evictions.sum();
+    }
+    
+    /**
+     * Returns the ratio of cache hits to lookups.
+     * 
+     * @return hit rate (0...1) , 1 if there were no lookups at all
+     */
+    public double hitRate() 
+    {
+        final long hitCount = hitCount();
+        final long total = hitCount + missCount();
+        return total == 0 ? 1.0 : hitCount / (double) total;
+    }
+    
+    @Override
+    public String toString() {
+        return "hits="+hitCount()+", misses="+missCount()+", evictions="+evictionCount()+", hit rate="+String.format("%.2f%%", 100*hitRate() );
+    }
+}
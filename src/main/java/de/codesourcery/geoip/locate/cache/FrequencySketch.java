@@ -0,0 +1,134 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.util.Arrays;
+
+/**
+ * A count-min sketch with 4-bit counters, used to estimate how often
+ * a key has been seen recently.
+ * 
+ * <p>Counters are halved after a sample period of 10 times the table size to 
+ * let the sketch forget about keys that are no longer popular.</p>
+ * 
+ * <p>This class is <b>not</b> thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class FrequencySketch 
+{
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+    
+    public FrequencySketch(long expectedMaximumSize) 
+    {
+        final int maximum = (int) Math.min( Math.max( expectedMaximumSize , 16 ) , 1 << 30 );
+        final int tableSize = Integer.highestOneBit( maximum - 1 ) << 1;
+        this.table = new long[ tableSize ];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+    
+    /**
+     * Returns the estimated frequency of an element (0...15).
+     *  
+     * @param hashCode
+     * @return
+     */
+    public int frequency(int hashCode) 
+    {
+        final int hash = spread( hashCode );
+        final int start = (hash & 3) << 2;
+        int result = Integer.MAX_VALUE;
+        for ( int i = 0 ; i < 4 ; i++ ) 
+        {
+            final int index = indexOf( hash , i );
+            final int count = (int) ( (table[index] >>> ((start + i) << 2) ) & 0xfL );
+            result = Math.min( result , count );
+        }
+        return result;
+    }
+    
+    /**
+     * Increments the frequency of an element, unless it's already at the maximum.
+     * 
+     * @param hashCode
+     */
+    public void increment(int hashCode) 
+    {
+        final int hash = spread( hashCode );
+        final int start = (hash & 3) << 2;
+        
+        boolean added = false;
+        for ( int i = 0 ; i < 4 ; i++ ) {
+            added |= incrementAt( indexOf( hash , i ) , start + i );
+        }
+        
+        if ( added && ++size == sampleSize ) {
+            reset();
+        }
+    }
+    
+    public void clear() 
+    {
+        Arrays.fill( table , 0 );
+        size = 0;
+    }
+    
+    private boolean incrementAt(int index, int counter) 
+    {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        if ( (table[index] & mask) != mask ) 
+        {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+    
+    private void reset() 
+    {
+        int oddCounters = 0;
+        for ( int i = 0 ; i < table.length ; i++ ) 
+        {
+            oddCounters += Long.bitCount( table[i] & ONE_MASK );
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (oddCounters >>> 2);
+    }
+    
+    private int indexOf(int hash,int i) 
+    {
+        long h = SEEDS[i] * hash;
+        h += h >>> 32;
+        return ( (int) h ) & tableMask;
+    }
+    
+    private static int spread(int x) 
+    {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+/**
+ * Decides which entries to discard when a size-bounded cache exceeds its capacity.
+ * 
+ * <p>Implementations need to be thread-safe. {@link #recordAccess(Object)} is invoked 
+ * on every cache lookup and must never block.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <K> cache key type
+ */
+public interface IEvictionPolicy<K> 
+{
+    /**
+     * Records a cache lookup (either hit or miss) for a key.
+     * 
+     * @param key
+     */
+    public void recordAccess(K key);
+    
+    /**
+     * Records that a key has been added to the cache.
+     * 
+     * @param key
+     */
+    public void recordInsertion(K key);
+    
+    /**
+     * Records that a key has been removed from the cache.
+     * 
+     * @param key
+     */
+    public void recordRemoval(K key);
+    
+    /**
+     * Selects the key to discard after inserting <code>candidate</code> 
+     * made the cache exceed its capacity.
+     * 
+     * @param candidate the key that was just inserted
+     * @return key to evict, may be <code>candidate</code> itself if the policy 
+     * decided to not admit it. <code>null</code> if there's nothing left to evict.
+     */
+    public K selectVictim(K candidate);
+    
+    /**
+     * Discards all state.
+     */
+    public void clear();
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least-recently used key.
+ *  
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <K>
+ */
+public class LRUEvictionPolicy<K> extends AbstractEvictionPolicy<K> 
+{
+    // keys in access order, least-recently used first
+    private final LinkedHashMap<K,Boolean> order = new LinkedHashMap<>( 16 , 0.75f , true );
+
+    @Override
+    protected void onAccess(K key) {
+        order.get( key );
+    }
+
+    @Override
+    protected void onInsertion(K key) {
+        order.put( key , Boolean.TRUE );
+    }
+
+    @Override
+    protected void onRemoval(K key) {
+        order.remove( key );
+    }
+
+    @Override
+    protected K doSelectVictim(K candidate) 
+    {
+        final Iterator<K> it = order.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+    
+    /**
+     * Returns the least-recently used key that is not <code>candidate</code>.
+     * 
+     * @param candidate
+     * @return key or <code>null</code>
+     */
+    protected final K leastRecentlyUsed(K candidate) 
+    {
+        for ( K key : order.keySet() ) 
+        {
+            if ( ! key.equals( candidate ) ) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void onClear() {
+        order.clear();
+    }
+}
@@ -0,0 +1,477 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.StampedLock;
+
+import de.codesourcery.geoip.ISubject;
+
+/**
+ * Persistent cache store backed by a memory-mapped file with an open-addressing hash index.
+ * 
+ * <p>Opening a store only maps the file, so startup time does not depend on the number of entries. Lookups
+ * read records straight from the mapping and the data set may exceed the Java heap (the operating 
+ * system's page cache holds the hot part).</p>
+ * 
+ * <p>File layout:</p>
+ * <pre>
+ * header (64 bytes)   : int magic, int version, int slot count, int entry count, long end of data
+ * slot table          : slot count * ( long key hash , long record offset ), key hash 0 marks an empty slot
+ * records             : short key length, byte[] key, int payload length, byte[] payload
+ * </pre>
+ * 
+ * <p>Keys are the UTF-8 encoded JSON representation of the subject, payloads are encoded by {@link CacheEntryCodec}.
+ * Updating an entry appends a new record and re-points the slot, the old record is left behind as garbage until the 
+ * slot table needs to grow and the file gets rewritten.</p>
+ * 
+ * <p>Updates are serialized. Lookups read optimistically without locking and only fall back to a shared lock
+ * if an update happened while they were reading. Since a single mapping is used, files are limited to 2 GB.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <SUBJECT>
+ */
+public final class MemoryMappedCacheStore<SUBJECT extends ISubject<?>> 
+{
+    private static final int MAGIC = 0x474d4d53; // 'GMMS'
+    private static final int VERSION = 1;
+    
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    
+    private static final int OFFSET_SLOT_COUNT = 8;
+    private static final int OFFSET_ENTRY_COUNT = 12;
+    private static final int OFFSET_DATA_END = 16;
+    
+    private static final int DEFAULT_SLOT_COUNT = 1<<16;
+    private static final float MAX_LOAD_FACTOR = 0.7f;
+    
+    private final File file;
+    private final Constructor<SUBJECT> constructor;
+    private final int initialSlotCount;
+    
+    // @GuardedBy( this )
+    private RandomAccessFile raf;
+    
+    // the current mapping, replaced when the file grows or gets re-hashed
+    private volatile MappedByteBuffer buffer;
+    
+    // write-locked while the mapping is being modified, lookups validate their optimistic reads against it  
+    private final StampedLock lock = new StampedLock();
+    
+    public MemoryMappedCacheStore(File file,Constructor<SUBJECT> constructor) 
+    {
+        this( file , constructor , DEFAULT_SLOT_COUNT );
+    }
+    
+    /**
+     * Create instance.
+     * 
+     * @param file
+     * @param constructor
+     * @param initialSlotCount number of hash slots to use when creating a new file, must be a power of two
+     */
+    public MemoryMappedCacheStore(File file,Constructor<SUBJECT> constructor,int initialSlotCount) 
+    {
+        if ( file == null ) {
+            throw new IllegalArgumentException("file must not be NULL");
+        }
+        if ( initialSlotCount < 2 || Integer.bitCount( initialSlotCount ) != 1 ) {
+            throw new IllegalArgumentException("Slot count must be a power of two");
+        }
+        this.file = file;
+        this.constructor = constructor;
+        this.initialSlotCount = initialSlotCount;
+    }
+    
+    /**
+     * Opens (or creates) the store.
+     * 
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException 
+    {
+        if ( raf != null ) {
+            return;
+        }
+        if ( ! file.exists() || file.length() == 0 ) {
+            initialize( file , initialSlotCount );
+        }
+        raf = new RandomAccessFile( file , "rw" );
+        final long stamp = lock.writeLock();
+        try {
+            map( raf.length() );
+        } finally {
+            lock.unlockWrite( stamp );
+        }
+        if ( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION ) 
+        {
+            close();
+            throw new IOException("Not a cache store (or unsupported version): "+file);
+        }
+    }
+    
+    private static void initialize(File file,int slotCount) throws IOException 
+    {
+        try ( RandomAccessFile out = new RandomAccessFile( file , "rw" ) ) 
+        {
+            final long dataStart = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+            out.setLength( 0 );
+            out.setLength( dataStart + dataStart / 2 );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( slotCount );
+            out.writeInt( 0 );
+            out.writeLong( dataStart );
+        }
+    }
+    
+    private void map(long size) throws IOException 
+    {
+        if ( size > Integer.MAX_VALUE ) {
+            throw new IOException("Cache store "+file+" exceeds maximum size of 2 GB");
+        }
+        buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE , 0 , size );
+    }
+    
+    /**
+     * Returns the number of entries in this store.
+     * 
+     * @return
+     */
+    public int size() 
+    {
+        final ByteBuffer buf = checkOpen();
+        return buf.getInt( OFFSET_ENTRY_COUNT );
+    }
+    
+    /**
+     * Look up an entry.
+     * 
+     * @param subject
+     * @return entry or <code>null</code>
+     * @throws IOException if the store is not open or corrupted
+     */
+    public CacheEntry<SUBJECT> get(SUBJECT subject) throws IOException 
+    {
+        final byte[] key = toKey( subject );
+        final long hash = hash( key );
+        
+        byte[] payload;
+        long stamp = lock.tryOptimisticRead();
+        if ( stamp != 0 ) 
+        {
+            try 
+            {
+                payload = readPayload( checkOpen() , key , hash );
+                if ( lock.validate( stamp ) ) {
+                    return decode( payload );
+                }
+            } 
+            catch(RuntimeException e) {
+                // saw a half-finished update, retry while holding the lock
+            }
+        }
+        
+        stamp = lock.readLock();
+        try 
+        {
+            final ByteBuffer buf = buffer;
+            if ( buf == null ) {
+                throw new IOException("Cache store "+file+" is not open");
+            }
+            payload = readPayload( buf , key , hash );
+        } 
+        catch(RuntimeException e) {
+            throw new IOException("Cache store "+file+" is corrupted: "+e.getMessage() , e );
+        } 
+        finally {
+            lock.unlockRead( stamp );
+        }
+        return decode( payload );
+    }
+    
+    /**
+     * Copies the payload of the record for a key.
+     * 
+     * <p>Must not trust anything it reads since it may race with an update, so all offsets and lengths are range-checked.</p>
+     * 
+     * @return payload or <code>null</code> if the key is not in the store
+     */
+    private static byte[] readPayload(ByteBuffer buf,byte[] key,long hash) 
+    {
+        final int slot = findSlot( buf , key , hash );
+        if ( slot < 0 ) {
+            return null;
+        }
+        final long offset = buf.getLong( slotOffset( slot ) + 8 );
+        final int payloadOffset = (int) offset + 2 + key.length;
+        final int payloadLength = buf.getInt( payloadOffset );
+        if ( payloadLength < 0 || (long) payloadOffset + 4 + payloadLength > buf.capacity() ) {
+            throw new IllegalStateException("Corrupted record at offset "+offset);
+        }
+        final byte[] result = new byte[ payloadLength ];
+        final ByteBuffer view = buf.duplicate();
+        view.position( payloadOffset + 4 );
+        view.get( result );
+        return result;
+    }
+    
+    private CacheEntry<SUBJECT> decode(byte[] payload) throws IOException 
+    {
+        if ( payload == null ) {
+            return null;
+        }
+        try {
+            return CacheEntryCodec.read( new DataInputStream( new ByteArrayInputStream( payload ) ) , constructor );
+        } catch(RuntimeException e) { // malformed subject JSON etc.
+            throw new IOException("Cache store "+file+" contains a malformed record: "+e.getMessage() , e );
+        }
+    }
+    
+    /**
+     * Adds or replaces an entry.
+     *  
+     * @param entry
+     * @throws IOException
+     */
+    public synchronized void put(CacheEntry<SUBJECT> entry) throws IOException 
+    {
+        final byte[] key = toKey( entry.subject() );
+        if ( key.length > 0xffff ) {
+            throw new IOException("Subject too large: "+entry.subject());
+        }
+        
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CacheEntryCodec.write( entry , new DataOutputStream( out ) );
+        final byte[] payload = out.toByteArray();
+        final long hash = hash( key );
+        
+        final long stamp = lock.writeLock();
+        try 
+        {
+            ByteBuffer buf = checkOpen();
+            int slot = findSlot( buf , key , hash );
+            
+            // only new keys occupy another slot, replacing an entry never triggers a re-hash 
+            final int slotCount = buf.getInt( OFFSET_SLOT_COUNT );
+            if ( slot < 0 && buf.getInt( OFFSET_ENTRY_COUNT ) + 1 > slotCount * MAX_LOAD_FACTOR ) 
+            {
+                rehash( slotCount * 2 );
+                buf = buffer;
+                slot = findSlot( buf , key , hash );
+            }
+            
+            final long recordOffset = buf.getLong( OFFSET_DATA_END );
+            final long recordEnd = recordOffset + 2 + key.length + 4 + payload.length;
+            if ( recordEnd > buf.capacity() ) 
+            {
+                raf.setLength( Math.max( recordEnd , Math.min( 2L * buf.capacity() , Integer.MAX_VALUE ) ) );
+                map( raf.length() );
+                buf = buffer;
+            }
+            
+            // write record
+            final ByteBuffer view = buf.duplicate();
+            view.position( (int) recordOffset );
+            view.putShort( (short) key.length );
+            view.put( key );
+            view.putInt( payload.length );
+            view.put( payload );
+            buf.putLong( OFFSET_DATA_END , recordEnd );
+            
+            // update index 
+            if ( slot >= 0 ) 
+            {
+                buf.putLong( slotOffset( slot ) + 8 , recordOffset );
+            } 
+            else 
+            {
+                slot = -slot - 1;
+                buf.putLong( slotOffset( slot ) + 8 , recordOffset );
+                buf.putLong( slotOffset( slot ) , hash );
+                buf.putInt( OFFSET_ENTRY_COUNT , buf.getInt( OFFSET_ENTRY_COUNT ) + 1 );
+            }
+        } 
+        finally {
+            lock.unlockWrite( stamp );
+        }
+    }
+    
+    /**
+     * Rewrites the store with a larger slot table, dropping unreferenced records along the way. 
+     * 
+     * @param newSlotCount
+     * @throws IOException
+     */
+    private void rehash(int newSlotCount) throws IOException 
+    {
+        final File tmpFile = new File( file.getPath()+".tmp" );
+        initialize( tmpFile , newSlotCount );
+        
+        final MemoryMappedCacheStore<SUBJECT> tmp = new MemoryMappedCacheStore<>( tmpFile , constructor );
+        tmp.open();
+        try 
+        {
+            final ByteBuffer buf = buffer;
+            final int slotCount = buf.getInt( OFFSET_SLOT_COUNT );
+            for ( int slot = 0 ; slot < slotCount ; slot++ ) 
+            {
+                final long offset = buf.getLong( slotOffset( slot ) + 8 );
+                if ( buf.getLong( slotOffset( slot ) ) != 0 && offset != 0 ) 
+                {
+                    final int keyLength = buf.getShort( (int) offset ) & 0xffff;
+                    final int payloadOffset = (int) offset + 2 + keyLength;
+                    final byte[] payload = new byte[ buf.getInt( payloadOffset ) ];
+                    final ByteBuffer view = buf.duplicate();
+                    view.position( payloadOffset + 4 );
+                    view.get( payload );
+                    tmp.put( decode( payload ) );
+                }
+            }
+        } 
+        finally {
+            tmp.close();
+        }
+        
+        raf.close();
+        Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
+        raf = new RandomAccessFile( file , "rw" );
+        // readers still using the previous mapping keep working, it stays valid until garbage-collected 
+        map( raf.length() );
+    }
+    
+    /**
+     * Finds the slot for a key.
+     * 
+     * @return slot index if the key was found, otherwise <code>-(index of the first empty slot) - 1</code>
+     */
+    private static int findSlot(ByteBuffer buf,byte[] key,long hash) 
+    {
+        final int slotCount = buf.getInt( OFFSET_SLOT_COUNT );
+        final int mask = slotCount - 1;
+        int slot = (int) ( hash ^ (hash >>> 32) ) & mask;
+        for ( int i = 0 ; i < slotCount ; i++ , slot = (slot+1) & mask ) 
+        {
+            final int slotOffset = slotOffset( slot );
+            final long slotHash = buf.getLong( slotOffset );
+            if ( slotHash == 0 ) {
+                return -slot - 1;
+            }
+            if ( slotHash == hash ) 
+            {
+                final long offset = buf.getLong( slotOffset + 8 );
+                if ( offset != 0 && keyEquals( buf , (int) offset , key ) ) {
+                    return slot;
+                }
+            }
+        }
+        throw new IllegalStateException("Slot table is full");
+    }
+    
+    private static boolean keyEquals(ByteBuffer buf,int offset,byte[] key) 
+    {
+        final int keyLength = buf.getShort( offset ) & 0xffff;
+        if ( keyLength != key.length || offset + 2 + keyLength > buf.capacity() ) {
+            return false;
+        }
+        final ByteBuffer stored = buf.duplicate();
+        stored.limit( offset + 2 + keyLength );
+        stored.position( offset + 2 );
+        return stored.equals( ByteBuffer.wrap( key ) );
+    }
+    
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+    
+    private static byte[] toKey(ISubject<?> subject) {
+        return CacheEntryCodec.subjectToString( subject ).getBytes( StandardCharsets.UTF_8 );
+    }
+    
+    /*
+     * 64-bit FNV-1a , never returns 0 (which marks empty slots)
+     */
+    private static long hash(byte[] key) 
+    {
+        long hash = 0xcbf29ce484222325L;
+        for ( byte b : key ) 
+        {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+    
+    private ByteBuffer checkOpen() 
+    {
+        final ByteBuffer result = buffer;
+        if ( result == null ) {
+            throw new IllegalStateException("Cache store "+file+" is not open");
+        }
+        return result;
+    }
+    
+    /**
+     * Writes all pending changes to disk.
+     */
+    public synchronized void force() 
+    {
+        if ( buffer != null ) {
+            buffer.force();
+        }
+    }
+    
+    /**
+     * Writes all pending changes to disk and closes the store.
+     * 
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException 
+    {
+        if ( raf == null ) {
+            return;
+        }
+        final long stamp = lock.writeLock();
+        try {
+            force();
+            raf.close();
+        } finally {
+            raf = null;
+            buffer = null;
+            lock.unlockWrite( stamp );
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
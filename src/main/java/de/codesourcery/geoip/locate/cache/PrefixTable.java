@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import de.codesourcery.geoip.net.NetworkPrefix;
+
+/**
+ * Thread-safe map from network prefixes to values that supports longest-prefix matching.
+ *
+ * <p>Lookups probe one hash map entry per distinct prefix length in use (longest first),
+ * so they're cheap as long as only a handful of different prefix lengths are stored.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <V>
+ */
+public final class PrefixTable<V>
+{
+	private final Family<V> ipv4 = new Family<>();
+	private final Family<V> ipv6 = new Family<>();
+
+	private static final class Family<V>
+	{
+		public final ConcurrentHashMap<NetworkPrefix,V> entries = new ConcurrentHashMap<>();
+
+		// prefix lengths that have been used so far, longest first
+		public final ConcurrentSkipListSet<Integer> lengths = new ConcurrentSkipListSet<>( Collections.reverseOrder() );
+	}
+
+	private Family<V> family(boolean isIPv4) {
+		return isIPv4 ? ipv4 : ipv6;
+	}
+
+	/**
+	 * Associates a value with a network, replacing any previous value.
+	 *
+	 * @param prefix
+	 * @param value
+	 */
+	public void put(NetworkPrefix prefix,V value)
+	{
+		final Family<V> family = family( prefix.isIPv4() );
+		family.lengths.add( prefix.length() );
+		family.entries.put( prefix , value );
+	}
+
+	/**
+	 * Removes a network if it's currently mapped to a given value.
+	 *
+	 * @param prefix
+	 * @param value
+	 * @return
+	 */
+	public boolean remove(NetworkPrefix prefix,V value) {
+		return family( prefix.isIPv4() ).entries.remove( prefix , value );
+	}
+
+	/**
+	 * Returns the value associated with the most specific network containing an address.
+	 *
+	 * @param address address in network byte order (4 or 16 bytes)
+	 * @return value or <code>null</code>
+	 */
+	public V longestMatch(byte[] address)
+	{
+		final Family<V> family = family( address.length == 4 );
+		if ( family.entries.isEmpty() ) {
+			return null;
+		}
+		for ( Integer length : family.lengths )
+		{
+			final V result = family.entries.get( NetworkPrefix.of( address , length ) );
+			if ( result != null ) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return ipv4.entries.size() + ipv6.entries.size();
+	}
+
+	public void clear()
+	{
+		ipv4.entries.clear();
+		ipv4.lengths.clear();
+		ipv6.entries.clear();
+		ipv6.lengths.clear();
+	}
+}
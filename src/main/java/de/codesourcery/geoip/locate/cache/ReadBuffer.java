@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free, lossy ring buffer used to record cache accesses without 
+ * acquiring a lock on the lookup path.
+ * 
+ * <p>Recorded elements may get lost when writers lap the consumer, which is 
+ * acceptable for recency/frequency bookkeeping.</p>
+ *  
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <T>
+ */
+final class ReadBuffer<T> 
+{
+    private static final int SIZE = 256;
+    private static final int MASK = SIZE - 1;
+    
+    /**
+     * Number of writes after which {@link #offer(Object)} suggests draining the buffer.
+     */
+    private static final int DRAIN_THRESHOLD = 32;
+    
+    private final AtomicReferenceArray<T> buffer = new AtomicReferenceArray<>( SIZE );
+    private final AtomicLong writeCounter = new AtomicLong();
+    
+    // @GuardedBy( lock held by caller of drainTo() )
+    private long readCounter;
+    
+    /**
+     * Adds an element.
+     * 
+     * @param element
+     * @return <code>true</code> if the buffer should be drained
+     */
+    public boolean offer(T element) 
+    {
+        final long index = writeCounter.getAndIncrement();
+        buffer.lazySet( (int) (index & MASK) , element );
+        return ( index & (DRAIN_THRESHOLD-1) ) == DRAIN_THRESHOLD-1;
+    }
+    
+    /**
+     * Hands all buffered elements to a consumer.
+     * 
+     * <p>Callers need to make sure this method is never invoked concurrently.</p>
+     * @param consumer
+     */
+    public void drainTo(Consumer<T> consumer) 
+    {
+        final long end = writeCounter.get();
+        for ( long i = Math.max( readCounter , end - SIZE ) ; i < end ; i++ ) 
+        {
+            final T element = buffer.getAndSet( (int) (i & MASK) , null );
+            if ( element != null ) {
+                consumer.accept( element );
+            }
+        }
+        readCounter = end;
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+/**
+ * LRU eviction combined with a TinyLFU admission filter.
+ * 
+ * <p>When the cache is full, a newly inserted key is only admitted if it has been 
+ * requested more frequently than the least-recently used key it would replace. Access 
+ * frequencies are tracked approximately using a {@link FrequencySketch}, so one-hit wonders 
+ * (like the millions of IPs that show up exactly once in access logs) do not flush hot entries 
+ * from the cache.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <K>
+ */
+public class TinyLFUEvictionPolicy<K> extends LRUEvictionPolicy<K> 
+{
+    private final FrequencySketch sketch;
+    
+    /**
+     * Create instance.
+     * 
+     * @param expectedMaximumSize expected maximum number of cache entries, used to size the frequency sketch
+     */
+    public TinyLFUEvictionPolicy(long expectedMaximumSize) 
+    {
+        this.sketch = new FrequencySketch( expectedMaximumSize );
+    }
+    
+    @Override
+    protected void onAccess(K key) 
+    {
+        sketch.increment( key.hashCode() );
+        super.onAccess( key );
+    }
+    
+    @Override
+    protected K doSelectVictim(K candidate) 
+    {
+        final K victim = leastRecentlyUsed( candidate );
+        if ( victim == null ) {
+            return candidate;
+        }
+        final int candidateFreq = sketch.frequency( candidate.hashCode() );
+        final int victimFreq = sketch.frequency( victim.hashCode() );
+        return candidateFreq > victimFreq ? victim : candidate;
+    }
+    
+    @Override
+    protected void onClear() 
+    {
+        super.onClear();
+        sketch.clear();
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import de.codesourcery.geoip.ISubject;
+
+/**
+ * Append-only binary log of cache entries.
+ * 
+ * <p>Every record is written as <code>int length, int CRC32, byte[length] payload</code> with
+ * the payload being encoded by {@link CacheEntryCodec}. A torn record at the end of the log (left behind by 
+ * a crash) is detected by its checksum and discarded when the log is {@link #open(Consumer) opened}.</p>
+ * 
+ * <p>To compact the log, the active file is {@link #rotate() rotated} (renamed to <code>&lt;log&gt;.&lt;sequence number&gt;</code>), 
+ * the caller writes a snapshot of its data and then {@link #deleteRotated(int) deletes} the rotated files. Rotated files 
+ * that are still around on startup are replayed before the active file.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ *
+ * @param <SUBJECT>
+ */
+public final class WriteAheadLog<SUBJECT extends ISubject<?>> 
+{
+    private static final int MAGIC = 0x474c4f47; // 'GLOG'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    
+    private final File file;
+    private final Constructor<SUBJECT> constructor;
+    
+    // @GuardedBy( this )
+    private FileOutputStream fileOut;
+    // @GuardedBy( this )
+    private DataOutputStream out;
+    // @GuardedBy( this )
+    private long size;
+    
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    
+    public WriteAheadLog(File file,Constructor<SUBJECT> constructor) 
+    {
+        if ( file == null ) {
+            throw new IllegalArgumentException("file must not be NULL");
+        }
+        this.file = file;
+        this.constructor = constructor;
+    }
+    
+    /**
+     * Replays all log records and opens the log for appending.
+     * 
+     * @param consumer receives log records in the order they were written
+     * @throws IOException
+     */
+    public synchronized void open(Consumer<CacheEntry<SUBJECT>> consumer) throws IOException 
+    {
+        if ( out != null ) {
+            throw new IllegalStateException("Log "+file+" is already open");
+        }
+        
+        for ( File rotated : getRotatedFiles() ) {
+            replay( rotated , consumer );
+        }
+        
+        long validLength = 0;
+        if ( file.exists() ) {
+            validLength = replay( file , consumer );
+        }
+        
+        if ( validLength < HEADER_SIZE ) {
+            openEmpty();
+        } 
+        else 
+        {
+            // get rid of torn records
+            try ( RandomAccessFile raf = new RandomAccessFile( file , "rw" ) ) {
+                raf.setLength( validLength );
+            }
+            openForAppend( true );
+            size = validLength;
+        }
+    }
+    
+    /**
+     * Starts a new, empty log file.
+     */
+    private void openEmpty() throws IOException 
+    {
+        openForAppend( false );
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.flush();
+        size = HEADER_SIZE;
+    }
+    
+    private void openForAppend(boolean append) throws IOException 
+    {
+        fileOut = new FileOutputStream( file , append );
+        out = new DataOutputStream( new BufferedOutputStream( fileOut ) );
+    }
+    
+    /**
+     * Replays a log file.
+     * 
+     * @param input
+     * @param consumer
+     * @return number of bytes up to (and including) the last valid record.
+     * @throws IOException
+     */
+    private long replay(File input,Consumer<CacheEntry<SUBJECT>> consumer) throws IOException 
+    {
+        long validLength = 0;
+        int count = 0;
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( input ) ) ) ) 
+        {
+            try {
+                if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                    throw new IOException("Not a cache log (or unsupported version): "+input);
+                }
+            } catch(EOFException e) {
+                return 0;
+            }
+            validLength = HEADER_SIZE;
+            
+            final CRC32 checksum = new CRC32();
+            while ( true ) 
+            {
+                final byte[] payload;
+                final int expectedCrc;
+                try 
+                {
+                    final int length = in.readInt();
+                    expectedCrc = in.readInt();
+                    if ( length < 0 || length > 1024*1024 ) {
+                        break;
+                    }
+                    payload = new byte[ length ];
+                    in.readFully( payload );
+                } 
+                catch(EOFException e) {
+                    break;
+                }
+                checksum.reset();
+                checksum.update( payload , 0 , payload.length );
+                if ( (int) checksum.getValue() != expectedCrc ) {
+                    break;
+                }
+                consumer.accept( CacheEntryCodec.read( new DataInputStream( new ByteArrayInputStream( payload ) ) , constructor ) );
+                validLength += 8 + payload.length;
+                count++;
+            }
+        }
+        System.out.println("Replayed "+count+" records from "+input);
+        return validLength;
+    }
+    
+    /**
+     * Appends an entry to the log.
+     * 
+     * <p>The record is handed to the operating system before this method returns, so
+     * it survives a crash of the JVM.</p>
+     * 
+     * @param entry
+     * @throws IOException
+     */
+    public synchronized void append(CacheEntry<SUBJECT> entry) throws IOException 
+    {
+        if ( out == null ) {
+            throw new IllegalStateException("Log "+file+" is not open");
+        }
+        buffer.reset();
+        CacheEntryCodec.write( entry , new DataOutputStream( buffer ) );
+        crc.reset();
+        crc.update( buffer.toByteArray() , 0 , buffer.size() );
+        
+        out.writeInt( buffer.size() );
+        out.writeInt( (int) crc.getValue() );
+        buffer.writeTo( out );
+        out.flush();
+        size += 8 + buffer.size();
+    }
+    
+    /**
+     * Returns the size of the active log file in bytes.
+     * 
+     * @return
+     */
+    public synchronized long size() {
+        return size;
+    }
+    
+    /**
+     * Closes the active log file and starts a new, empty one.
+     * 
+     * <p>Unlike {@link #open(Consumer)}, this does not replay any records.</p>
+     * 
+     * @return sequence number of the rotated file, to be passed to {@link #deleteRotated(int)} 
+     * @throws IOException
+     */
+    public synchronized int rotate() throws IOException 
+    {
+        final List<File> existing = getRotatedFiles();
+        final int sequenceNumber = existing.isEmpty() ? 1 : sequenceNumber( existing.get( existing.size() - 1 ) ) + 1;
+        close();
+        final File rotated = new File( file.getPath()+"."+sequenceNumber );
+        if ( ! file.renameTo( rotated ) ) {
+            throw new IOException("Failed to rename "+file+" -> "+rotated);
+        }
+        openEmpty();
+        return sequenceNumber;
+    }
+    
+    /**
+     * Deletes rotated log files.
+     * 
+     * @param upToSequenceNumber delete all files with a sequence number less than or equal to this one
+     */
+    public synchronized void deleteRotated(int upToSequenceNumber) 
+    {
+        for ( File rotated : getRotatedFiles() ) 
+        {
+            if ( sequenceNumber( rotated ) <= upToSequenceNumber && ! rotated.delete() ) {
+                System.err.println("Failed to delete "+rotated);
+            }
+        }
+    }
+    
+    private List<File> getRotatedFiles() 
+    {
+        final List<File> result = new ArrayList<>();
+        final File dir = file.getAbsoluteFile().getParentFile();
+        final File[] files = dir == null ? null : dir.listFiles();
+        if ( files != null ) 
+        {
+            for ( File f : files ) 
+            {
+                if ( sequenceNumber( f ) > 0 ) {
+                    result.add( f );
+                }
+            }
+        }
+        result.sort( Comparator.comparingInt( this::sequenceNumber ) );
+        return result;
+    }
+    
+    private int sequenceNumber(File f) 
+    {
+        final String prefix = file.getName()+".";
+        final String name = f.getName();
+        if ( ! name.startsWith( prefix ) ) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt( name.substring( prefix.length() ) );
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Flushes all pending writes to disk and closes the log.
+     *  
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException 
+    {
+        if ( out == null ) {
+            return;
+        }
+        try {
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+            out = null;
+            fileOut = null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves host names on a bounded pool of threads and caches the results.
+ *
+ * <p>Successful lookups are cached for a configurable time, failed lookups (unknown hosts) for a
+ * (usually shorter) negative time-to-live. Concurrent requests for the same host name share a single lookup.
+ * Address literals are never passed to the system resolver.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see #getDefault()
+ */
+public class HostnameResolver
+{
+	private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+	private static final HostnameResolver DEFAULT = new HostnameResolver( 8 , 10 , 1 , TimeUnit.MINUTES );
+
+	private static final int MAX_CACHE_SIZE = 10000;
+
+	private static final long DEFAULT_RESOLVE_TIMEOUT_MILLIS = 10000;
+
+	private final ExecutorService executor;
+	private final long timeToLiveMillis;
+	private final long negativeTimeToLiveMillis;
+	private volatile long resolveTimeoutMillis = DEFAULT_RESOLVE_TIMEOUT_MILLIS;
+
+	private final ConcurrentHashMap<String,Entry> cache = new ConcurrentHashMap<>();
+
+	private static final class Entry
+	{
+		public final CompletableFuture<InetAddress> future = new CompletableFuture<>();
+
+		// time this entry expires, only valid once the future is done
+		public volatile long expirationTime = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Create instance.
+	 *
+	 * @param maxConcurrency maximum number of concurrent lookups
+	 * @param timeToLive how long successful lookups are cached
+	 * @param negativeTimeToLive how long failed lookups are cached
+	 * @param unit
+	 */
+	public HostnameResolver(int maxConcurrency,long timeToLive,long negativeTimeToLive,TimeUnit unit)
+	{
+		if ( maxConcurrency < 1 ) {
+			throw new IllegalArgumentException("maxConcurrency must be >= 1");
+		}
+		if ( timeToLive < 0 || negativeTimeToLive < 0 ) {
+			throw new IllegalArgumentException("Time-to-live must be >= 0");
+		}
+		this.timeToLiveMillis = unit.toMillis( timeToLive );
+		this.negativeTimeToLiveMillis = unit.toMillis( negativeTimeToLive );
+
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor( maxConcurrency , maxConcurrency , 30 , TimeUnit.SECONDS , new LinkedBlockingQueue<>() , r ->
+		{
+			final Thread t = new Thread( r , "hostname-resolver-"+THREAD_ID.incrementAndGet() );
+			t.setDaemon( true );
+			return t;
+		});
+		pool.allowCoreThreadTimeOut( true );
+		this.executor = pool;
+	}
+
+	/**
+	 * Returns the resolver shared by all locators and path tracing.
+	 *
+	 * @return
+	 */
+	public static HostnameResolver getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Sets how long {@link #resolve(String)} waits for a lookup to finish (default: 10 seconds).
+	 *
+	 * <p>The lookup itself keeps running after the caller gave up and its result still gets cached.</p>
+	 *
+	 * @param timeout
+	 * @param unit
+	 */
+	public void setResolveTimeout(long timeout,TimeUnit unit)
+	{
+		if ( timeout <= 0 ) {
+			throw new IllegalArgumentException("Timeout must be > 0");
+		}
+		this.resolveTimeoutMillis = unit.toMillis( timeout );
+	}
+
+	/**
+	 * Resolves a host name or address literal, blocking until the lookup finished.
+	 *
+	 * @param hostOrLiteral
+	 * @return
+	 * @throws UnknownHostException if the host could not be resolved or the lookup did not finish in time
+	 * @see #setResolveTimeout(long, TimeUnit)
+	 */
+	public InetAddress resolve(String hostOrLiteral) throws UnknownHostException
+	{
+		final long timeoutMillis = resolveTimeoutMillis;
+		try {
+			return resolveAsync( hostOrLiteral ).get( timeoutMillis , TimeUnit.MILLISECONDS );
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw toUnknownHost( "Interrupted while resolving "+hostOrLiteral , e );
+		}
+		catch (TimeoutException e) {
+			throw toUnknownHost( "Resolving "+hostOrLiteral+" took more than "+timeoutMillis+" ms" , e );
+		}
+		catch (ExecutionException e)
+		{
+			if ( e.getCause() instanceof UnknownHostException ) {
+				throw (UnknownHostException) e.getCause();
+			}
+			throw toUnknownHost( hostOrLiteral+": "+e.getCause() , e.getCause() );
+		}
+	}
+
+	private static UnknownHostException toUnknownHost(String message,Throwable cause)
+	{
+		final UnknownHostException result = new UnknownHostException( message );
+		result.initCause( cause );
+		return result;
+	}
+
+	/**
+	 * Resolves a host name or address literal asynchronously.
+	 *
+	 * @param hostOrLiteral
+	 * @return future that completes with the address or fails with an {@link UnknownHostException}
+	 */
+	public CompletableFuture<InetAddress> resolveAsync(String hostOrLiteral)
+	{
+		final InetAddress literal = IPAddress.toInetAddress( hostOrLiteral );
+		if ( literal != null ) {
+			return CompletableFuture.completedFuture( literal );
+		}
+
+		final String key = hostOrLiteral.trim().toLowerCase();
+		final long now = currentTimeMillis();
+		while ( true )
+		{
+			final Entry existing = cache.get( key );
+			if ( existing != null )
+			{
+				if ( existing.expirationTime > now ) {
+					return existing.future;
+				}
+				cache.remove( key , existing );
+				continue;
+			}
+
+			final Entry entry = new Entry();
+			if ( cache.putIfAbsent( key , entry ) != null ) {
+				continue; // somebody else started a lookup
+			}
+			if ( cache.size() > MAX_CACHE_SIZE ) {
+				purge( now );
+			}
+			submit( key , entry );
+			return entry.future;
+		}
+	}
+
+	/**
+	 * Resolves multiple host names concurrently.
+	 *
+	 * @param hostsOrLiterals
+	 * @return futures in the same order as the input
+	 */
+	public List<CompletableFuture<InetAddress>> resolveAll(Collection<String> hostsOrLiterals)
+	{
+		final List<CompletableFuture<InetAddress>> result = new ArrayList<>( hostsOrLiterals.size() );
+		for ( String host : hostsOrLiterals ) {
+			result.add( resolveAsync( host ) );
+		}
+		return result;
+	}
+
+	private void submit(String host,Entry entry)
+	{
+		try
+		{
+			executor.execute( () ->
+			{
+				try
+				{
+					final InetAddress result = lookup( host );
+					entry.expirationTime = currentTimeMillis() + timeToLiveMillis;
+					entry.future.complete( result );
+				}
+				catch(Exception e)
+				{
+					entry.expirationTime = currentTimeMillis() + negativeTimeToLiveMillis;
+					entry.future.completeExceptionally( e instanceof UnknownHostException ? e : toUnknownHost( host+": "+e.getMessage() , e ) );
+				}
+			});
+		}
+		catch(RuntimeException e) // rejected
+		{
+			cache.remove( host , entry );
+			entry.future.completeExceptionally( toUnknownHost( "Failed to start lookup of "+host+": "+e.getMessage() , e ) );
+		}
+	}
+
+	private void purge(long now)
+	{
+		for ( Iterator<Entry> it = cache.values().iterator() ; it.hasNext() ; )
+		{
+			if ( it.next().expirationTime <= now ) {
+				it.remove();
+			}
+		}
+		// still too many entries, drop arbitrary ones (but never lookups in progress, callers are waiting for them)
+		for ( Iterator<Entry> it = cache.values().iterator() ; cache.size() > MAX_CACHE_SIZE && it.hasNext() ; )
+		{
+			if ( it.next().future.isDone() ) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Discards all cached lookups.
+	 */
+	public void flushCache() {
+		cache.clear();
+	}
+
+	/**
+	 * Performs the actual lookup.
+	 *
+	 * @param host
+	 * @return
+	 * @throws UnknownHostException
+	 */
+	protected InetAddress lookup(String host) throws UnknownHostException {
+		return InetAddress.getByName( host );
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
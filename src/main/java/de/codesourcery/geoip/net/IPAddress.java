@@ -0,0 +1,309 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Parsing of IPv4/IPv6 address literals.
+ *
+ * <p>Unlike {@link InetAddress#getByName(String)}, the methods in this class never
+ * perform DNS lookups.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class IPAddress
+{
+	private IPAddress() {
+	}
+
+	/**
+	 * Returns whether a string is an IPv4 or IPv6 address literal.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public static boolean isLiteral(String s) {
+		return parse( s ) != null;
+	}
+
+	/**
+	 * Parses an IPv4 (dotted-quad) or IPv6 address literal.
+	 *
+	 * <p>IPv6 literals may be enclosed in square brackets and carry a zone ID (<code>fe80::1%eth0</code>),
+	 * the zone ID is ignored.</p>
+	 *
+	 * @param s
+	 * @return address in network byte order (4 or 16 bytes) or <code>null</code> if the input is not an address literal
+	 */
+	public static byte[] parse(String s)
+	{
+		if ( s == null ) {
+			return null;
+		}
+		String input = s.trim();
+		if ( input.isEmpty() ) {
+			return null;
+		}
+		if ( input.indexOf( ':' ) == -1 ) {
+			return parseIPv4( input , 0 , input.length() );
+		}
+
+		if ( input.startsWith("[") )
+		{
+			if ( ! input.endsWith("]") ) {
+				return null;
+			}
+			input = input.substring( 1 , input.length() - 1 );
+		}
+		final int zone = input.indexOf( '%' );
+		if ( zone != -1 ) {
+			input = input.substring( 0 , zone );
+		}
+		return parseIPv6( input );
+	}
+
+	/**
+	 * Parses an IPv4 (dotted-quad) address literal into a number, without allocating any objects.
+	 *
+	 * @param s
+	 * @return address as unsigned 32-bit value or <code>-1</code> if the input is not an IPv4 address literal
+	 */
+	public static long parseIPv4ToLong(String s)
+	{
+		if ( s == null ) {
+			return -1;
+		}
+		int start = 0;
+		int end = s.length();
+		while ( start < end && s.charAt( start ) <= ' ' ) {
+			start++;
+		}
+		while ( end > start && s.charAt( end - 1 ) <= ' ' ) {
+			end--;
+		}
+		return parseIPv4ToLong( s , start , end );
+	}
+
+	/**
+	 * Converts an address literal into an {@link InetAddress} without doing a DNS lookup.
+	 *
+	 * @param s
+	 * @return address or <code>null</code> if the input is not an address literal
+	 */
+	public static InetAddress toInetAddress(String s)
+	{
+		final byte[] address = parse( s );
+		if ( address == null ) {
+			return null;
+		}
+		try {
+			return InetAddress.getByAddress( address );
+		} catch (UnknownHostException e) {
+			throw new RuntimeException( e ); // never happens, address has a valid length
+		}
+	}
+
+	/**
+	 * Resolves a host name or address literal.
+	 * 
+	 * <p>Address literals are converted without doing a DNS lookup, only host names are passed to the 
+	 * {@link HostnameResolver#getDefault() shared resolver}.</p>
+	 * 
+	 * @param hostOrLiteral
+	 * @return
+	 * @throws UnknownHostException if the input is a host name that could not be resolved
+	 */
+	public static InetAddress resolve(String hostOrLiteral) throws UnknownHostException
+	{
+		final InetAddress literal = toInetAddress( hostOrLiteral );
+		if ( literal != null ) {
+			return literal;
+		}
+		return HostnameResolver.getDefault().resolve( hostOrLiteral );
+	}
+
+	/**
+	 * Formats an address.
+	 *
+	 * @param address address in network byte order (4 or 16 bytes)
+	 * @return dotted-quad notation for IPv4, full (uncompressed) hex notation for IPv6
+	 */
+	public static String toString(byte[] address)
+	{
+		final StringBuilder result = new StringBuilder();
+		if ( address.length == 4 )
+		{
+			for ( int i = 0 ; i < 4 ; i++ )
+			{
+				if ( i > 0 ) {
+					result.append('.');
+				}
+				result.append( address[i] & 0xff );
+			}
+			return result.toString();
+		}
+		if ( address.length != 16 ) {
+			throw new IllegalArgumentException("Invalid address length: "+address.length);
+		}
+		for ( int i = 0 ; i < 16 ; i += 2 )
+		{
+			if ( i > 0 ) {
+				result.append(':');
+			}
+			result.append( Integer.toHexString( ( ( address[i] & 0xff ) << 8 ) | ( address[i+1] & 0xff ) ) );
+		}
+		return result.toString();
+	}
+
+	private static byte[] parseIPv4(String s,int start,int end)
+	{
+		final long address = parseIPv4ToLong( s , start , end );
+		if ( address == -1 ) {
+			return null;
+		}
+		return new byte[] { (byte) ( address >>> 24 ) , (byte) ( address >>> 16 ) , (byte) ( address >>> 8 ) , (byte) address };
+	}
+
+	private static long parseIPv4ToLong(String s,int start,int end)
+	{
+		long result = 0;
+		int part = 0;
+		int value = 0;
+		int digits = 0;
+		for ( int i = start ; i < end ; i++ )
+		{
+			final char c = s.charAt( i );
+			if ( c == '.' )
+			{
+				if ( digits == 0 || part == 3 ) {
+					return -1;
+				}
+				result = ( result << 8 ) | value;
+				part++;
+				value = 0;
+				digits = 0;
+			}
+			else if ( c >= '0' && c <= '9' )
+			{
+				value = value * 10 + ( c - '0' );
+				digits++;
+				if ( value > 255 || digits > 3 ) {
+					return -1;
+				}
+			}
+			else {
+				return -1;
+			}
+		}
+		if ( digits == 0 || part != 3 ) {
+			return -1;
+		}
+		return ( result << 8 ) | value;
+	}
+
+	private static byte[] parseIPv6(String s)
+	{
+		final int doubleColon = s.indexOf( "::" );
+		if ( doubleColon != -1 && s.indexOf( "::" , doubleColon+1 ) != -1 ) {
+			return null;
+		}
+
+		final int[] groups = new int[8];
+		final int head;
+		final int tail;
+		if ( doubleColon == -1 )
+		{
+			head = parseGroups( s , 0 , s.length() , groups , 0 , true );
+			if ( head != 8 ) {
+				return null;
+			}
+			tail = 0;
+		}
+		else
+		{
+			head = parseGroups( s , 0 , doubleColon , groups , 0 , false );
+			if ( head < 0 ) {
+				return null;
+			}
+			final int[] tailGroups = new int[8];
+			tail = parseGroups( s , doubleColon+2 , s.length() , tailGroups , 0 , true );
+			if ( tail < 0 || head + tail > 7 ) {
+				return null;
+			}
+			System.arraycopy( tailGroups , 0 , groups , 8 - tail , tail );
+		}
+
+		final byte[] result = new byte[16];
+		for ( int i = 0 ; i < 8 ; i++ )
+		{
+			result[2*i] = (byte) ( groups[i] >> 8 );
+			result[2*i+1] = (byte) groups[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Parses colon-separated hex groups.
+	 *
+	 * @return number of 16-bit groups parsed or -1 on error
+	 */
+	private static int parseGroups(String s,int start,int end,int[] groups,int offset,boolean allowIPv4Suffix)
+	{
+		if ( start == end ) {
+			return 0;
+		}
+		int count = 0;
+		int groupStart = start;
+		for ( int i = start ; i <= end ; i++ )
+		{
+			if ( i == end || s.charAt( i ) == ':' )
+			{
+				final int len = i - groupStart;
+				if ( len == 0 || len > 4 || offset+count >= 8 ) {
+					return -1;
+				}
+				int value = 0;
+				for ( int j = groupStart ; j < i ; j++ )
+				{
+					final int digit = Character.digit( s.charAt( j ) , 16 );
+					if ( digit == -1 ) {
+						return -1;
+					}
+					value = (value << 4) | digit;
+				}
+				groups[offset+count++] = value;
+				groupStart = i+1;
+			}
+			else if ( s.charAt( i ) == '.' )
+			{
+				// embedded IPv4 address (::ffff:192.0.2.1), must be the last part
+				if ( ! allowIPv4Suffix || offset+count > 6 ) {
+					return -1;
+				}
+				final byte[] ipv4 = parseIPv4( s , groupStart , end );
+				if ( ipv4 == null ) {
+					return -1;
+				}
+				groups[offset+count++] = ( ( ipv4[0] & 0xff ) << 8 ) | ( ipv4[1] & 0xff );
+				groups[offset+count++] = ( ( ipv4[2] & 0xff ) << 8 ) | ( ipv4[3] & 0xff );
+				return count;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Extracts selected top-level fields from a JSON object in a single streaming pass.
+ *
+ * <p>Values of fields that were not asked for are skipped character by character
+ * without being materialized.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class JSONFieldReader
+{
+	private JSONFieldReader() {
+	}
+
+	/**
+	 * Reads a JSON object and returns the values of some of its top-level fields.
+	 *
+	 * @param in
+	 * @param fieldNames names of the fields to extract, matched case-insensitively
+	 * @return field values in the same order as <code>fieldNames</code>, <code>null</code> for fields that
+	 * were missing or JSON <code>null</code>. Values are <code>String</code>s, <code>Number</code>s, <code>Boolean</code>s or
+	 * (for nested values) {@link JSONObject}s / {@link org.json.JSONArray}s
+	 * @throws IOException if the input is not a JSON object
+	 */
+	public static Object[] readFields(Reader in,String... fieldNames) throws IOException
+	{
+		final Object[] result = new Object[ fieldNames.length ];
+		final JSONTokener tokener = new JSONTokener( in );
+		try
+		{
+			if ( tokener.nextClean() != '{' ) {
+				throw tokener.syntaxError("Expected a JSON object");
+			}
+			char c = tokener.nextClean();
+			if ( c == '}' ) {
+				return result;
+			}
+			while ( true )
+			{
+				if ( c != '"' && c != '\'' ) {
+					throw tokener.syntaxError("Expected a field name");
+				}
+				final int index = indexOf( fieldNames , tokener.nextString( c ) );
+				if ( tokener.nextClean() != ':' ) {
+					throw tokener.syntaxError("Expected ':'");
+				}
+				if ( index != -1 )
+				{
+					final Object value = tokener.nextValue();
+					result[index] = value == JSONObject.NULL ? null : value;
+				} else {
+					skipValue( tokener );
+				}
+
+				c = tokener.nextClean();
+				if ( c == '}' ) {
+					return result;
+				}
+				if ( c != ',' ) {
+					throw tokener.syntaxError("Expected ',' or '}'");
+				}
+				c = tokener.nextClean();
+			}
+		}
+		catch(JSONException e) {
+			throw new IOException( "Malformed JSON: "+e.getMessage() , e );
+		}
+	}
+
+	/**
+	 * Returns a numeric field value as <code>double</code>.
+	 *
+	 * @param value
+	 * @param fieldName field name (used in error messages)
+	 * @return
+	 * @throws IOException if the value is missing or not a number
+	 */
+	public static double toDouble(Object value,String fieldName) throws IOException
+	{
+		if ( value instanceof Number ) {
+			return ((Number) value).doubleValue();
+		}
+		if ( value instanceof String )
+		{
+			try {
+				return Double.parseDouble( (String) value );
+			} catch(NumberFormatException e) {
+				// fall through
+			}
+		}
+		throw new IOException("Field '"+fieldName+"' is not a number: "+value);
+	}
+
+	private static int indexOf(String[] fieldNames,String name)
+	{
+		for ( int i = 0 ; i < fieldNames.length ; i++ )
+		{
+			if ( fieldNames[i].equalsIgnoreCase( name ) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void skipValue(JSONTokener tokener) throws JSONException
+	{
+		int depth = 0;
+		while ( true )
+		{
+			final char c = tokener.nextClean();
+			switch( c )
+			{
+				case 0:
+					throw tokener.syntaxError("Unexpected end of input");
+				case '"':
+				case '\'':
+					skipString( tokener , c );
+					break;
+				case '{':
+				case '[':
+					depth++;
+					break;
+				case '}':
+				case ']':
+					if ( depth == 0 ) { // end of the enclosing object
+						tokener.back();
+						return;
+					}
+					depth--;
+					break;
+				case ',':
+					if ( depth == 0 ) {
+						tokener.back();
+						return;
+					}
+					break;
+				default:
+					// part of a literal (number, true, false, null)
+			}
+		}
+	}
+
+	private static void skipString(JSONTokener tokener,char quote) throws JSONException
+	{
+		while ( true )
+		{
+			final char c = tokener.next();
+			if ( c == 0 || c == '\n' || c == '\r' ) {
+				throw tokener.syntaxError("Unterminated string");
+			}
+			if ( c == '\\' ) {
+				tokener.next();
+			} else if ( c == quote ) {
+				return;
+			}
+		}
+	}
+}
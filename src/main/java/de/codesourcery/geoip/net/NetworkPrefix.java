@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.util.Arrays;
+
+/**
+ * An IPv4 or IPv6 network block in CIDR notation (<code>192.0.2.0/24</code>).
+ *
+ * <p>Instances are immutable.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class NetworkPrefix
+{
+	private final byte[] network;
+	private final int length;
+
+	private NetworkPrefix(byte[] network,int length)
+	{
+		this.network = network;
+		this.length = length;
+	}
+
+	/**
+	 * Returns the network of a given prefix length that contains an address.
+	 *
+	 * @param address address in network byte order (4 or 16 bytes)
+	 * @param length prefix length in bits
+	 * @return
+	 */
+	public static NetworkPrefix of(byte[] address,int length)
+	{
+		if ( address.length != 4 && address.length != 16 ) {
+			throw new IllegalArgumentException("Invalid address length: "+address.length);
+		}
+		if ( length < 0 || length > address.length*8 ) {
+			throw new IllegalArgumentException("Invalid prefix length for "+(address.length*8)+" bit address: "+length);
+		}
+		return new NetworkPrefix( mask( address , length ) , length );
+	}
+
+	/**
+	 * Parses a network in CIDR notation.
+	 *
+	 * @param cidr
+	 * @return
+	 * @throws IllegalArgumentException if the input is not a valid network
+	 */
+	public static NetworkPrefix parse(String cidr) throws IllegalArgumentException
+	{
+		final int slash = cidr.indexOf( '/' );
+		if ( slash == -1 ) {
+			throw new IllegalArgumentException("Not a CIDR network: "+cidr);
+		}
+		final byte[] address = IPAddress.parse( cidr.substring( 0 , slash ) );
+		if ( address == null ) {
+			throw new IllegalArgumentException("Not a CIDR network: "+cidr);
+		}
+		final int length;
+		try {
+			length = Integer.parseInt( cidr.substring( slash+1 ).trim() );
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Not a CIDR network: "+cidr);
+		}
+		return of( address , length );
+	}
+
+	private static byte[] mask(byte[] address,int length)
+	{
+		final byte[] result = new byte[ address.length ];
+		final int fullBytes = length / 8;
+		System.arraycopy( address , 0 , result , 0 , fullBytes );
+		final int remainingBits = length % 8;
+		if ( remainingBits != 0 ) {
+			result[fullBytes] = (byte) ( address[fullBytes] & ( 0xff << ( 8 - remainingBits ) ) );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns whether an address is part of this network.
+	 *
+	 * @param address address in network byte order (4 or 16 bytes)
+	 * @return
+	 */
+	public boolean contains(byte[] address)
+	{
+		return address.length == network.length && Arrays.equals( network , mask( address , length ) );
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isIPv4() {
+		return network.length == 4;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if ( obj instanceof NetworkPrefix )
+		{
+			final NetworkPrefix other = (NetworkPrefix) obj;
+			return this.length == other.length && Arrays.equals( this.network , other.network );
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode( network ) + length;
+	}
+
+	@Override
+	public String toString() {
+		return IPAddress.toString( network )+"/"+length;
+	}
+}
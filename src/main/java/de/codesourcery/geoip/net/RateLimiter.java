@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe token bucket that limits the rate of requests to a web service.
+ *
+ * <p>Permits are handed out at a fixed rate, up to <code>burst</code> permits that
+ * have not been used can accumulate. Callers reserve a permit with a single CAS and then sleep
+ * (without holding any lock) until their permit becomes valid, so concurrent callers get
+ * consecutive time slots instead of serializing on a monitor.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class RateLimiter
+{
+	private final long nanosPerPermit;
+	private final int burst;
+
+	// point in time when the next permit becomes available, lies (burst-1) permits in the past when the bucket is full
+	private final AtomicLong nextPermitNanos;
+
+	/**
+	 * Create instance.
+	 *
+	 * @param permitsPerSecond
+	 * @param burst maximum number of permits that can be acquired without waiting
+	 */
+	public RateLimiter(double permitsPerSecond,int burst)
+	{
+		if ( permitsPerSecond <= 0 ) {
+			throw new IllegalArgumentException("Rate must be > 0");
+		}
+		if ( burst < 1 ) {
+			throw new IllegalArgumentException("Burst must be >= 1");
+		}
+		this.nanosPerPermit = (long) ( TimeUnit.SECONDS.toNanos( 1 ) / permitsPerSecond );
+		this.burst = burst;
+		this.nextPermitNanos = new AtomicLong( System.nanoTime() - ( burst - 1 ) * nanosPerPermit );
+	}
+
+	/**
+	 * Acquires a permit, waiting until one becomes available.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException
+	{
+		final long waitNanos = reserve();
+		if ( waitNanos > 0 ) {
+			TimeUnit.NANOSECONDS.sleep( waitNanos );
+		}
+	}
+
+	/**
+	 * Reserves the next free permit.
+	 *
+	 * @return time in nanoseconds the caller needs to wait before the permit may be used
+	 */
+	private long reserve()
+	{
+		final long maxBacklogNanos = ( burst - 1 ) * nanosPerPermit;
+		while ( true )
+		{
+			final long now = System.nanoTime();
+			final long next = nextPermitNanos.get();
+			// unused permits only accumulate up to the burst size
+			final long permitTime = Math.max( next , now - maxBacklogNanos );
+			if ( nextPermitNanos.compareAndSet( next , permitTime + nanosPerPermit ) ) {
+				return permitTime - now;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimiter[ "+String.format("%.2f", TimeUnit.SECONDS.toNanos( 1 ) / (double) nanosPerPermit )+" permits/s , burst: "+burst+" ]";
+	}
+}
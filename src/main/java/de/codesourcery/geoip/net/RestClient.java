@@ -0,0 +1,161 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP client for talking to REST web services.
+ *
+ * <p>Connections are pooled by the JDK's keep-alive cache (its size is controlled
+ * by the <code>http.maxConnections</code> system property). A connection only goes back into the
+ * pool when its response has been consumed completely, so this class always drains
+ * response bodies - including error responses - before closing them.</p>
+ *
+ * <p>Instances are immutable and thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class RestClient
+{
+	private static final RestClient DEFAULT = new RestClient( 2000 , 5000 );
+
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+
+	/**
+	 * Consumes a response body.
+	 *
+	 * @param <T>
+	 */
+	public interface IResponseHandler<T>
+	{
+		public T handle(Reader body) throws IOException;
+	}
+
+	/**
+	 * Create instance.
+	 *
+	 * @param connectTimeoutMillis connect timeout in milliseconds
+	 * @param readTimeoutMillis read timeout in milliseconds
+	 */
+	public RestClient(int connectTimeoutMillis,int readTimeoutMillis)
+	{
+		if ( connectTimeoutMillis <= 0 || readTimeoutMillis <= 0 ) {
+			throw new IllegalArgumentException("Timeouts must be > 0");
+		}
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * Returns a client with default timeouts (2 s connect , 5 s read).
+	 *
+	 * @return
+	 */
+	public static RestClient getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Performs a GET request.
+	 *
+	 * @param url
+	 * @param handler handler that gets invoked with the response body (decoded as UTF-8) of a successful (2xx) response
+	 * @return result of the handler
+	 * @throws IOException on I/O errors or if the server responded with a status code other than 2xx
+	 */
+	public <T> T get(URL url,IResponseHandler<T> handler) throws IOException
+	{
+		final URLConnection connection = url.openConnection();
+		connection.setConnectTimeout( connectTimeoutMillis );
+		connection.setReadTimeout( readTimeoutMillis );
+		connection.setUseCaches( false );
+		connection.setRequestProperty( "Accept" , "application/json" );
+		connection.setRequestProperty( "Connection" , "keep-alive" );
+
+		if ( connection instanceof HttpURLConnection )
+		{
+			final HttpURLConnection http = (HttpURLConnection) connection;
+			final int status = http.getResponseCode();
+			if ( status < 200 || status > 299 )
+			{
+				drain( http.getErrorStream() );
+				throw new IOException("HTTP request to "+url+" failed: "+status+" "+http.getResponseMessage());
+			}
+		}
+
+		try ( InputStream in = connection.getInputStream() )
+		{
+			final T result = handler.handle( new InputStreamReader( in , StandardCharsets.UTF_8 ) );
+			drain( in );
+			return result;
+		}
+	}
+
+	/**
+	 * Performs a GET request and returns the response body.
+	 *
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 * @see #get(URL, IResponseHandler)
+	 */
+	public String get(URL url) throws IOException
+	{
+		return get( url , body ->
+		{
+			final StringBuilder result = new StringBuilder();
+			final char[] buffer = new char[1024];
+			int read;
+			while ( ( read = body.read( buffer ) ) != -1 ) {
+				result.append( buffer , 0 , read );
+			}
+			return result.toString();
+		});
+	}
+
+	/**
+	 * Reads whatever is left of a response so the underlying connection can be re-used.
+	 */
+	private static void drain(InputStream in) throws IOException
+	{
+		if ( in != null )
+		{
+			try
+			{
+				final byte[] buffer = new byte[1024];
+				while ( in.read( buffer ) != -1 ) {
+					// discard
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RestClient[ connect timeout: "+connectTimeoutMillis+" ms , read timeout: "+readTimeoutMillis+" ms ]";
+	}
+}
@@ -22,9 +22,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -35,6 +34,9 @@ import java.util.function.Consumer;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.lang.StringUtils;
 
+import de.codesourcery.geoip.net.IPAddress;
+import de.codesourcery.geoip.net.NetworkPrefix;
+
 /**
  * 
  * @author tobias.gierke@code-sourcery.de
@@ -51,6 +53,9 @@ public class TracePath
      */	
     public static final String TRACEROUTE = "/usr/bin/traceroute.db";
 
+    private static final NetworkPrefix[] UNROUTABLE_NETWORKS = { 
+        NetworkPrefix.parse("10.0.0.0/8") , NetworkPrefix.parse("172.16.0.0/12") , NetworkPrefix.parse("192.168.0.0/16") };
+
     public static void main(String[] args) throws Exception {
 
         final String sIp = "192.168.2.1";
@@ -154,7 +159,8 @@ public class TracePath
             if ( parts.length >= 2 && StringUtils.isNotBlank( parts[1] ) ) 
             {
                 String ip = parts[1].trim();
-                if ( isValidAddress( ip ) && ! ip.equals( previousHop ) ) 
+                // tracers get invoked with '-n' so hops are always printed as address literals
+                if ( IPAddress.isLiteral( ip ) && ! ip.equals( previousHop ) ) 
                 { 
                     result.add( ip );
                     previousHop = ip;
@@ -321,21 +327,10 @@ public class TracePath
 
     protected static String getIPAddress(String name) {
         try {
-            InetAddress inet = Inet4Address.getByName( name );
-            if ( inet != null ) {
-                return inet.getHostAddress();
-            }
-        } catch(Exception e) {
-
-        }
-        try {
-            InetAddress inet = Inet6Address.getByName( name );
-            if ( inet != null ) {
-                return inet.getHostAddress();
-            }
-        } catch(Exception e) {
+            return IPAddress.resolve( name ).getHostAddress();
+        } catch(UnknownHostException e) {
+            return null;
         }
-        return null;
     }
     protected static class TracePathTracer extends AbstractPathTracer {
 
@@ -382,24 +377,19 @@ public class TracePath
     
     private static Optional<InetAddress> parseIP(String s) 
     {
-        if ( s != null && ! s.contains("." ) ) {
-            return Optional.empty();
+        final InetAddress literal = IPAddress.toInetAddress( s );
+        if ( literal != null ) {
+            return Optional.of( literal );
         }
-        try {
-            InetAddress ip = Inet4Address.getByName( s );
-            if ( ip != null ) {
-                return Optional.of(ip);
-            }
-        } catch(Exception e) {
+        // only fully-qualified host names need to be resolved
+        if ( s == null || ! s.contains("." ) ) {
+            return Optional.empty();
         }
         try {
-            InetAddress ip = Inet6Address.getByName( s );
-            if ( ip != null ) {
-                return Optional.of(ip);
-            }
-        } catch(Exception e) {
+            return Optional.of( IPAddress.resolve( s ) );
+        } catch(UnknownHostException e) {
+            return Optional.empty();
         }
-        return Optional.empty();
     }
     
     public static boolean isUnroutableAddress(String s) 
@@ -407,51 +397,15 @@ public class TracePath
         final Optional<InetAddress> ip = parseIP( s );
         if ( ip.isPresent() ) 
         {
-            final String[] subnets = { "10.0.0.0/8","172.16.0.0/12","192.168.0.0/16" };
-            for ( String subnet : subnets ) {
-                if ( isInSubnet( ip.get() , subnet ) ) {
+            final byte[] address = ip.get().getAddress();
+            for ( NetworkPrefix subnet : UNROUTABLE_NETWORKS ) {
+                if ( subnet.contains( address ) ) {
                     return true;
                 }
             }
         }
         return false;
     }
-    
-    private static boolean isInSubnet(InetAddress ip, String subnet) 
-    {
-        final String[] parts = subnet.split("/");
-        final byte[] netPart = parseIP( parts[0] ).get().getAddress();
-        final int maskBits = Integer.parseInt( parts[1] );
-        final byte[] mask = new byte[ netPart.length ];
-        
-        int index = 0;
-        int bitsLeft = maskBits;
-        int maskBit = 1<<7;
-        while ( bitsLeft > 0 ) 
-        {
-            mask[index] |= maskBit;
-            maskBit = maskBit >> 1;
-            if ( maskBit == 0 ) {
-                maskBit = 1<<7;
-                index++;
-            }
-            bitsLeft--;
-        }
-        
-        byte[] adr1 = ip.getAddress();
-        byte[] adr2 = netPart;
-        if ( adr1.length != adr2.length ) {
-            return false;
-        }
-        for ( int i = 0 ; i < mask.length ; i++ ) {
-            adr1[i] &= mask[i];
-            adr2[i] &= mask[i];
-            if ( adr1[i] != adr2[i] ) {
-                return false;
-            }
-        }
-        return true;
-    }
 
     private static String squashWhitespace(String input) {
 
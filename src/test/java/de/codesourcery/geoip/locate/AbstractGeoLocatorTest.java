@@ -0,0 +1,94 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+
+public class AbstractGeoLocatorTest extends TestCase {
+
+	private static final class SlowLocator extends AbstractGeoLocator<StringSubject> 
+	{
+		private final Random rnd = new Random(0xdeadbeef);
+		
+		public final AtomicInteger running = new AtomicInteger();
+		public final AtomicInteger maxRunning = new AtomicInteger();
+		
+		@Override
+		public GeoLocation<StringSubject> locate(StringSubject subject) throws Exception 
+		{
+			final int current = running.incrementAndGet();
+			maxRunning.accumulateAndGet( current , Math::max );
+			try {
+				final int delay;
+				synchronized( rnd ) {
+					delay = 5 + rnd.nextInt( 20 );
+				}
+				Thread.sleep( delay );
+				return new GeoLocation<>( subject , 1 , 2 );
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+	}
+	
+	private static List<StringSubject> subjects(int count) 
+	{
+		final List<StringSubject> result = new ArrayList<>();
+		for ( int i = 0 ; i < count ; i++ ) {
+			result.add( new StringSubject( "10.0.0."+i ) );
+		}
+		return result;
+	}
+	
+	public void testParallelLookupPreservesOrder() throws Exception 
+	{
+		final SlowLocator locator = new SlowLocator();
+		locator.setMaxConcurrency( 4 );
+		
+		final List<StringSubject> input = subjects( 30 );
+		final List<GeoLocation<StringSubject>> result = locator.locate( input , (current,total) -> true );
+		
+		assertEquals( input.size() , result.size() );
+		for ( int i = 0 ; i < input.size() ; i++ ) {
+			assertEquals( input.get(i) , result.get(i).subject() );
+		}
+		assertTrue( locator.maxRunning.get() > 1 );
+		assertTrue( locator.maxRunning.get() <= 4 );
+	}
+	
+	public void testParallelLookupCanBeCancelled() throws Exception 
+	{
+		final SlowLocator locator = new SlowLocator();
+		locator.setMaxConcurrency( 4 );
+		
+		final List<StringSubject> input = subjects( 30 );
+		final List<GeoLocation<StringSubject>> result = locator.locate( input , (current,total) -> current < 5 || current == total );
+		
+		assertTrue( result.isEmpty() );
+	}
+}
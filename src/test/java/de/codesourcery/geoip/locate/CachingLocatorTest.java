@@ -16,6 +16,7 @@
 package de.codesourcery.geoip.locate;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -23,12 +24,23 @@ import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.easymock.classextension.EasyMock;
 
 import junit.framework.TestCase;
 import de.codesourcery.geoip.GeoLocation;
 import de.codesourcery.geoip.StringSubject;
+import de.codesourcery.geoip.locate.cache.TinyLFUEvictionPolicy;
 
 public class CachingLocatorTest extends TestCase {
 
@@ -107,4 +119,505 @@ public class CachingLocatorTest extends TestCase {
 		
 		EasyMock.verify( dummyDelegate );		
 	}
-}
\ No newline at end of file
+	
+	public void testConcurrentMissesShareOneLookup() throws Exception 
+	{
+		final StringSubject subject = new StringSubject("test1");
+		final AtomicInteger delegateCalls = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		final IGeoLocator<StringSubject> delegate = new AbstractGeoLocator<StringSubject>() {
+
+			@Override
+			public GeoLocation<StringSubject> locate(StringSubject s) throws Exception 
+			{
+				delegateCalls.incrementAndGet();
+				release.await( 5 , TimeUnit.SECONDS );
+				return new GeoLocation<>( s , 10 , 20 );
+			}
+
+			@Override
+			public boolean isAvailable() {
+				return true;
+			}
+		};
+		
+		final CachingGeoLocator<StringSubject> loc = new CachingGeoLocator<StringSubject>( delegate, StringSubject.class ) {
+			@Override
+			protected boolean cacheFileExists() {
+				return false;
+			}
+		};
+		
+		final List<Thread> threads = new ArrayList<>();
+		final AtomicInteger successes = new AtomicInteger();
+		for ( int i = 0 ; i < 8 ; i++ ) 
+		{
+			final Thread t = new Thread( () -> 
+			{
+				try {
+					if ( loc.locate( subject ).hasValidCoordinates() ) {
+						successes.incrementAndGet();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			threads.add( t );
+			t.start();
+		}
+		Thread.sleep( 200 );
+		release.countDown();
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		assertEquals( 8 , successes.get() );
+		assertEquals( 1 , delegateCalls.get() );
+	}
+	
+	private static IGeoLocator<StringSubject> countingDelegate(AtomicInteger delegateCalls) 
+	{
+		return new AbstractGeoLocator<StringSubject>() {
+
+			@Override
+			public GeoLocation<StringSubject> locate(StringSubject s) throws Exception 
+			{
+				delegateCalls.incrementAndGet();
+				return new GeoLocation<>( s , 10 , 20 );
+			}
+
+			@Override
+			public boolean isAvailable() {
+				return true;
+			}
+		};
+	}
+	
+	private static CachingGeoLocator<StringSubject> inMemoryCache(IGeoLocator<StringSubject> delegate) 
+	{
+		return new CachingGeoLocator<StringSubject>( delegate, StringSubject.class ) {
+			@Override
+			protected boolean cacheFileExists() {
+				return false;
+			}
+		};
+	}
+	
+	public void testBoundedCacheEvictsLeastRecentlyUsed() throws Exception 
+	{
+		final AtomicInteger delegateCalls = new AtomicInteger();
+		final CachingGeoLocator<StringSubject> loc = inMemoryCache( countingDelegate( delegateCalls ) );
+		loc.setMaximumSize( 10 );
+		
+		for ( int i = 0 ; i < 100 ; i++ ) {
+			loc.locate( new StringSubject( "10.0.0."+i ) );
+		}
+		assertEquals( 10 , loc.size() );
+		assertEquals( 90 , loc.getStatistics().evictionCount() );
+		assertEquals( 100 , loc.getStatistics().missCount() );
+		
+		loc.locate( new StringSubject( "10.0.0.99" ) );
+		assertEquals( 1 , loc.getStatistics().hitCount() );
+		assertEquals( 100 , delegateCalls.get() );
+	}
+	
+	public void testTinyLFUKeepsFrequentlyUsedEntries() throws Exception 
+	{
+		final AtomicInteger delegateCalls = new AtomicInteger();
+		final CachingGeoLocator<StringSubject> loc = inMemoryCache( countingDelegate( delegateCalls ) );
+		loc.setMaximumSize( 10 );
+		loc.setEvictionPolicy( new TinyLFUEvictionPolicy<>( 10 ) );
+		
+		final StringSubject hot = new StringSubject( "192.168.0.1" );
+		for ( int i = 0 ; i < 5 ; i++ ) {
+			loc.locate( hot );
+		}
+		// one-hit wonders
+		for ( int i = 0 ; i < 100 ; i++ ) {
+			loc.locate( new StringSubject( "10.0.0."+i ) );
+		}
+		assertTrue( loc.size() <= 10 );
+		
+		final int calls = delegateCalls.get();
+		loc.locate( hot );
+		assertEquals( calls , delegateCalls.get() );
+	}
+	
+	public void testExpiredEntriesAreRefreshed() throws Exception 
+	{
+		final AtomicLong now = new AtomicLong( 1000 );
+		final AtomicInteger delegateCalls = new AtomicInteger();
+		final IGeoLocator<StringSubject> delegate = new AbstractGeoLocator<StringSubject>() {
+
+			@Override
+			public GeoLocation<StringSubject> locate(StringSubject s) throws Exception 
+			{
+				delegateCalls.incrementAndGet();
+				return s.value().startsWith("10.") ? new GeoLocation<>( s ) : new GeoLocation<>( s , 10 , 20 );
+			}
+
+			@Override
+			public boolean isAvailable() {
+				return true;
+			}
+		};
+		
+		final CachingGeoLocator<StringSubject> loc = new CachingGeoLocator<StringSubject>( delegate, StringSubject.class ) {
+			@Override
+			protected boolean cacheFileExists() {
+				return false;
+			}
+			
+			@Override
+			protected long currentTimeMillis() {
+				return now.get();
+			}
+		};
+		loc.setTimeToLive( 10 , TimeUnit.SECONDS );
+		loc.setNegativeTimeToLive( 1 , TimeUnit.SECONDS );
+		
+		final StringSubject valid = new StringSubject("1.2.3.4");
+		final StringSubject invalid = new StringSubject("10.0.0.1");
+		
+		loc.locate( valid );
+		loc.locate( invalid );
+		assertEquals( 2 , delegateCalls.get() );
+		
+		now.addAndGet( 2000 );
+		loc.locate( valid );
+		assertEquals( 2 , delegateCalls.get() );
+		loc.locate( invalid );
+		assertEquals( 3 , delegateCalls.get() );
+		
+		now.addAndGet( 10000 );
+		loc.locate( valid );
+		assertEquals( 4 , delegateCalls.get() );
+		assertEquals( 2 , loc.size() );
+	}
+	
+	public void testStaleEntriesAreRefreshedInBackground() throws Exception 
+	{
+		final AtomicLong now = new AtomicLong( 1000 );
+		final AtomicInteger delegateCalls = new AtomicInteger();
+		final IGeoLocator<StringSubject> delegate = new AbstractGeoLocator<StringSubject>() {
+
+			@Override
+			public GeoLocation<StringSubject> locate(StringSubject s) throws Exception 
+			{
+				return new GeoLocation<>( s , delegateCalls.incrementAndGet() , 20 );
+			}
+
+			@Override
+			public boolean isAvailable() {
+				return true;
+			}
+		};
+		
+		final List<Runnable> refreshes = new ArrayList<>();
+		final CachingGeoLocator<StringSubject> loc = new CachingGeoLocator<StringSubject>( delegate, StringSubject.class ) {
+			@Override
+			protected boolean cacheFileExists() {
+				return false;
+			}
+			
+			@Override
+			protected long currentTimeMillis() {
+				return now.get();
+			}
+		};
+		loc.setRefreshAfter( 1 , TimeUnit.SECONDS );
+		loc.setRefreshExecutor( refreshes::add );
+		
+		final StringSubject subject = new StringSubject("1.2.3.4");
+		assertEquals( 1.0 , loc.locate( subject ).latitude() );
+		
+		now.addAndGet( 2000 );
+		assertEquals( 1.0 , loc.locate( subject ).latitude() );
+		assertEquals( 1.0 , loc.locate( subject ).latitude() );
+		assertEquals( "At most one refresh per key" , 1 , refreshes.size() );
+		assertEquals( 1 , delegateCalls.get() );
+		
+		refreshes.get(0).run();
+		assertEquals( 2.0 , loc.locate( subject ).latitude() );
+		assertEquals( 2 , delegateCalls.get() );
+	}
+	
+	private static void deleteRecursively(File file) 
+	{
+		final File[] children = file.listFiles();
+		if ( children != null ) {
+			for ( File child : children ) {
+				deleteRecursively( child );
+			}
+		}
+		file.delete();
+	}
+	
+	public void testWriteAheadLog() throws Exception 
+	{
+		final File dir = Files.createTempDirectory("geocache").toFile();
+		try 
+		{
+			final File cacheFile = new File( dir , "geolocation.cache" );
+			final File logFile = new File( dir , "geolocation.cache.log" );
+			
+			final AtomicInteger delegateCalls = new AtomicInteger();
+			CachingGeoLocator<StringSubject> loc = new CachingGeoLocator<StringSubject>( countingDelegate( delegateCalls ) , StringSubject.class );
+			loc.setCacheFile( cacheFile );
+			loc.setWriteAheadLog( logFile , Long.MAX_VALUE );
+			
+			for ( int i = 0 ; i < 10 ; i++ ) {
+				loc.locate( new StringSubject( "10.0.0."+i ) );
+			}
+			loc.dispose();
+			assertFalse( "dispose() should not write a snapshot" , cacheFile.exists() );
+			assertTrue( logFile.length() > 0 );
+			
+			// entries are replayed from the log
+			loc = new CachingGeoLocator<StringSubject>( countingDelegate( delegateCalls ) , StringSubject.class );
+			loc.setCacheFile( cacheFile );
+			loc.setWriteAheadLog( logFile , 1 );
+			
+			for ( int i = 0 ; i < 10 ; i++ ) {
+				assertEquals( 10.0 , loc.locate( new StringSubject( "10.0.0."+i ) ).latitude() );
+			}
+			assertEquals( 10 , delegateCalls.get() );
+			
+			// exceeding the threshold triggers compaction
+			loc.locate( new StringSubject( "10.0.0.10" ) );
+			final long deadline = System.currentTimeMillis() + 5000;
+			while ( ! cacheFile.exists() && System.currentTimeMillis() < deadline ) {
+				Thread.sleep( 10 );
+			}
+			assertTrue( "No snapshot written?" , cacheFile.exists() );
+			loc.dispose();
+			
+			loc = new CachingGeoLocator<StringSubject>( countingDelegate( delegateCalls ) , StringSubject.class );
+			loc.setCacheFile( cacheFile );
+			loc.setWriteAheadLog( logFile , Long.MAX_VALUE );
+			for ( int i = 0 ; i <= 10 ; i++ ) {
+				loc.locate( new StringSubject( "10.0.0."+i ) );
+			}
+			assertEquals( 11 , delegateCalls.get() );
+			loc.dispose();
+		} 
+		finally {
+			deleteRecursively( dir );
+		}
+	}
+	
+	public void testAsyncResultsReachLogBeforeDispose() throws Exception 
+	{
+		final File dir = Files.createTempDirectory("geocache").toFile();
+		try 
+		{
+			final File cacheFile = new File( dir , "geolocation.cache" );
+			final File logFile = new File( dir , "geolocation.cache.log" );
+			
+			final AtomicInteger delegateCalls = new AtomicInteger();
+			final IGeoLocator<StringSubject> delegate = countingDelegate( delegateCalls );
+			CachingGeoLocator<StringSubject> loc = new CachingGeoLocator<StringSubject>( new AbstractGeoLocator<StringSubject>() 
+			{
+				@Override
+				public CompletableFuture<GeoLocation<StringSubject>> locateAsync(StringSubject s) {
+					return AsyncSupport.supplyNow( () -> delegate.locate( s ) );
+				}
+				
+				@Override
+				public GeoLocation<StringSubject> locate(StringSubject s) throws Exception {
+					return delegate.locate( s );
+				}
+				
+				@Override
+				public boolean isAvailable() {
+					return true;
+				}
+			} , StringSubject.class );
+			loc.setCacheFile( cacheFile );
+			loc.setWriteAheadLog( logFile , Long.MAX_VALUE );
+			loc.loadAsync().get();
+			
+			// keep the background pool busy so cache writes queue up
+			for ( int i = 0 ; i < 64 ; i++ ) 
+			{
+				AsyncSupport.supplyBlocking( () -> 
+				{
+					Thread.sleep( 200 );
+					return null;
+				});
+			}
+			
+			final List<CompletableFuture<GeoLocation<StringSubject>>> futures = new ArrayList<>();
+			for ( int i = 0 ; i < 100 ; i++ ) {
+				futures.add( loc.locateAsync( new StringSubject( "10.0."+(i/10)+"."+(i%10) ) ) );
+			}
+			futures.forEach( CompletableFuture::join );
+			loc.dispose(); // right away, writes are still queued
+			
+			loc = new CachingGeoLocator<StringSubject>( countingDelegate( delegateCalls ) , StringSubject.class );
+			loc.setCacheFile( cacheFile );
+			loc.setWriteAheadLog( logFile , Long.MAX_VALUE );
+			for ( int i = 0 ; i < 100 ; i++ ) {
+				loc.locate( new StringSubject( "10.0."+(i/10)+"."+(i%10) ) );
+			}
+			assertEquals( 100 , delegateCalls.get() );
+			loc.dispose();
+		} 
+		finally {
+			deleteRecursively( dir );
+		}
+	}
+	
+	public void testLookupsBypassCacheWhileLoading() throws Exception 
+	{
+		final CountDownLatch loadingStarted = new CountDownLatch(1);
+		final CountDownLatch finishLoading = new CountDownLatch(1);
+		final AtomicInteger readerCalls = new AtomicInteger();
+		final AtomicInteger delegateCalls = new AtomicInteger();
+		
+		final CachingGeoLocator<StringSubject> loc = new CachingGeoLocator<StringSubject>( countingDelegate( delegateCalls ) , StringSubject.class ) 
+		{
+			@Override
+			protected boolean cacheFileExists() {
+				return true;
+			}
+			
+			@Override
+			protected InputStream createReader() throws IOException 
+			{
+				readerCalls.incrementAndGet();
+				loadingStarted.countDown();
+				try {
+					finishLoading.await();
+				} catch (InterruptedException e) {
+					throw new IOException( e );
+				}
+				return new ByteArrayInputStream( "[]".getBytes() );
+			}
+		};
+		loc.setLoadTimeout( 0 , TimeUnit.MILLISECONDS );
+		
+		loc.loadAsync();
+		assertTrue( loadingStarted.await( 5 , TimeUnit.SECONDS ) );
+		
+		final StringSubject subject = new StringSubject("test1");
+		assertNotNull( loc.locate( subject ) );
+		assertEquals( 1 , delegateCalls.get() );
+		assertEquals( 0 , loc.size() );
+		
+		finishLoading.countDown();
+		loc.loadAsync().get( 5 , TimeUnit.SECONDS );
+		for ( int i = 0 ; i < 50 && loc.size() == 0 ; i++ ) {
+			Thread.sleep( 10 );
+		}
+		assertEquals( 1 , loc.size() );
+		
+		loc.locate( subject );
+		assertEquals( 1 , delegateCalls.get() );
+		assertEquals( 1 , readerCalls.get() );
+	}
+	
+	public void testCacheHitsReturnFrozenInstances() throws Exception 
+	{
+		final CachingGeoLocator<StringSubject> loc = inMemoryCache( countingDelegate( new AtomicInteger() ) );
+		final StringSubject subject = new StringSubject("test1");
+		
+		final GeoLocation<StringSubject> first = loc.locate( subject );
+		final GeoLocation<StringSubject> second = loc.locate( subject );
+		assertSame( first , second );
+		assertTrue( second.isFrozen() );
+		try {
+			second.setParameter( GeoLocation.KEY_CITY , "test" );
+			fail("Should've failed");
+		} catch(UnsupportedOperationException e) {
+			// ok
+		}
+		assertFalse( second.createShallowCopy().isFrozen() );
+	}
+	
+	public void testPrefixCaching() throws Exception 
+	{
+		final AtomicInteger delegateCalls = new AtomicInteger();
+		final CachingGeoLocator<StringSubject> loc = inMemoryCache( new AbstractGeoLocator<StringSubject>() 
+		{
+			@Override
+			public GeoLocation<StringSubject> locate(StringSubject s) throws Exception 
+			{
+				delegateCalls.incrementAndGet();
+				final GeoLocation<StringSubject> result = new GeoLocation<>( s , 10 , 20 );
+				if ( s.value().startsWith("10.1.") ) {
+					result.setParameter( GeoLocation.KEY_NETWORK , "10.1.0.0/16" );
+				}
+				return result;
+			}
+			
+			@Override
+			public boolean isAvailable() {
+				return true;
+			}
+		});
+		loc.setPrefixCaching( 24 , 64 );
+		
+		loc.locate( new StringSubject("192.0.2.1") );
+		final GeoLocation<StringSubject> location = loc.locate( new StringSubject("192.0.2.200") );
+		assertEquals( new StringSubject("192.0.2.200") , location.subject() );
+		assertEquals( 1 , delegateCalls.get() );
+		
+		loc.locate( new StringSubject("192.0.3.1") );
+		assertEquals( 2 , delegateCalls.get() );
+		
+		// network reported by delegate
+		loc.locate( new StringSubject("10.1.2.3") );
+		loc.locate( new StringSubject("10.1.200.3") );
+		assertEquals( 3 , delegateCalls.get() );
+		
+		// hostnames are never matched by prefix
+		loc.locate( new StringSubject("www.heise.de") );
+		loc.locate( new StringSubject("www2.heise.de") );
+		assertEquals( 5 , delegateCalls.get() );
+	}
+	
+	public void testAsyncLookupsDoNotBlock() throws Exception 
+	{
+		// delegate that only answers when told to, without using any threads
+		final Map<StringSubject,CompletableFuture<GeoLocation<StringSubject>>> pending = new ConcurrentHashMap<>();
+		final CachingGeoLocator<StringSubject> loc = inMemoryCache( new AbstractGeoLocator<StringSubject>() 
+		{
+			@Override
+			public CompletableFuture<GeoLocation<StringSubject>> locateAsync(StringSubject s) 
+			{
+				final CompletableFuture<GeoLocation<StringSubject>> result = new CompletableFuture<>();
+				assertNull( pending.put( s , result ) );
+				return result;
+			}
+			
+			@Override
+			public GeoLocation<StringSubject> locate(StringSubject s) throws Exception {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override
+			public boolean isAvailable() {
+				return true;
+			}
+		});
+		loc.loadAsync().get();
+		
+		final List<CompletableFuture<GeoLocation<StringSubject>>> futures = new ArrayList<>();
+		for ( int i = 0 ; i < 1000 ; i++ ) {
+			futures.add( loc.locateAsync( new StringSubject( "192.0.2."+( i % 10 ) ) ) );
+		}
+		assertEquals( 10 , pending.size() );
+		assertFalse( futures.stream().anyMatch( CompletableFuture::isDone ) );
+		
+		pending.forEach( (subject,future) -> future.complete( new GeoLocation<>( subject , 10 , 20 ) ) );
+		for ( CompletableFuture<GeoLocation<StringSubject>> future : futures ) {
+			assertTrue( future.getNow( null ).hasValidCoordinates() );
+		}
+		
+		// cache hits complete immediately
+		final CompletableFuture<GeoLocation<StringSubject>> hit = loc.locateAsync( new StringSubject( "192.0.2.1" ) );
+		assertTrue( hit.isDone() );
+		assertEquals( 10 , pending.size() );
+	}
+}
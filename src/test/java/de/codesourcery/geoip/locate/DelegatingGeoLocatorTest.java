@@ -0,0 +1,233 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+
+public class DelegatingGeoLocatorTest extends TestCase {
+
+	private static final class TestLocator extends AbstractGeoLocator<StringSubject> 
+	{
+		private final String name;
+		public volatile boolean fail;
+		private final boolean valid;
+		private final long delayMillis;
+		public final AtomicInteger calls = new AtomicInteger();
+		public final AtomicInteger interrupted = new AtomicInteger();
+		public final AtomicInteger availabilityChecks = new AtomicInteger();
+		public volatile boolean available = true;
+		
+		public TestLocator(String name,boolean fail,boolean valid,long delayMillis) {
+			this.name = name;
+			this.fail = fail;
+			this.valid = valid;
+			this.delayMillis = delayMillis;
+		}
+		
+		@Override
+		public GeoLocation<StringSubject> locate(StringSubject subject) throws Exception 
+		{
+			calls.incrementAndGet();
+			try {
+				Thread.sleep( delayMillis );
+			} 
+			catch(InterruptedException e) 
+			{
+				interrupted.incrementAndGet();
+				throw e;
+			}
+			if ( fail ) {
+				throw new Exception("Simulated failure");
+			}
+			return valid ? new GeoLocation<>( subject , 1 , 2 ) : new GeoLocation<>( subject );
+		}
+
+		@Override
+		public boolean isAvailable() {
+			availabilityChecks.incrementAndGet();
+			return available;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	public void testChainingFallsThrough() throws Exception 
+	{
+		final TestLocator failing = new TestLocator( "failing" , true , false , 0 );
+		final TestLocator invalid = new TestLocator( "invalid" , false , false , 0 );
+		final TestLocator valid = new TestLocator( "valid" , false , true , 0 );
+		
+		final DelegatingGeoLocator<StringSubject> locator = new DelegatingGeoLocator<>( failing , invalid , valid );
+		try {
+			locator.locate( new StringSubject("192.0.2.1") );
+			fail("Should've failed");
+		} catch(Exception e) {
+			// ok, chaining is disabled by default
+		}
+		
+		locator.setChaining( true );
+		assertTrue( locator.locate( new StringSubject("192.0.2.1") ).hasValidCoordinates() );
+		assertEquals( 2 , failing.calls.get() );
+		assertEquals( 1 , invalid.calls.get() );
+		assertEquals( 1 , valid.calls.get() );
+	}
+	
+	public void testAdaptiveOrdering() throws Exception 
+	{
+		final TestLocator slow = new TestLocator( "slow" , false , true , 5 );
+		final TestLocator failing = new TestLocator( "failing" , true , false , 0 );
+		final TestLocator fast = new TestLocator( "fast" , false , true , 0 );
+		
+		final DelegatingGeoLocator<StringSubject> locator = new DelegatingGeoLocator<>( failing , slow , fast );
+		locator.setChaining( true );
+		locator.setAdaptiveOrdering( true );
+		
+		for ( int i = 0 ; i < 100 ; i++ ) {
+			assertTrue( locator.locate( new StringSubject("192.0.2.1") ).hasValidCoordinates() );
+		}
+		// 'fast' never got called, so only 'failing' and 'slow' got re-ordered
+		assertEquals( slow , locator.getStatistics().get(0).delegate() );
+		assertEquals( failing , locator.getStatistics().get(1).delegate() );
+		assertEquals( fast , locator.getStatistics().get(2).delegate() );
+		assertTrue( failing.calls.get() < 100 );
+	}
+	
+	public void testHedgedLookup() throws Exception 
+	{
+		final TestLocator slow = new TestLocator( "slow" , false , true , 5000 );
+		final TestLocator fast = new TestLocator( "fast" , false , true , 0 );
+		
+		final DelegatingGeoLocator<StringSubject> locator = new DelegatingGeoLocator<>( slow , fast );
+		locator.setChaining( true );
+		locator.setHedging( 0.95 , 50 , TimeUnit.MILLISECONDS );
+		try 
+		{
+			final long start = System.currentTimeMillis();
+			assertTrue( locator.locate( new StringSubject("192.0.2.1") ).hasValidCoordinates() );
+			assertTrue( System.currentTimeMillis() - start < 2000 );
+			assertEquals( 1 , slow.calls.get() );
+			assertEquals( 1 , fast.calls.get() );
+			// cancelled lookup must not count as a failure
+			assertEquals( 0 , locator.getStatistics().get(0).lookups() );
+			assertLoserInterrupted( slow );
+		} 
+		finally {
+			locator.dispose();
+		}
+	}
+	
+	public void testAvailabilityIsNotCheckedPerLookup() throws Exception 
+	{
+		final TestLocator first = new TestLocator( "first" , false , true , 0 );
+		final TestLocator second = new TestLocator( "second" , false , true , 0 );
+		first.available = false;
+		
+		final DelegatingGeoLocator<StringSubject> locator = new DelegatingGeoLocator<>( first , second );
+		locator.setAvailabilityRefreshInterval( 1 , TimeUnit.HOURS );
+		for ( int i = 0 ; i < 10 ; i++ ) {
+			locator.locate( new StringSubject("192.0.2.1") );
+		}
+		assertEquals( 0 , first.calls.get() );
+		assertEquals( 10 , second.calls.get() );
+		assertEquals( 1 , first.availabilityChecks.get() );
+		assertEquals( 1 , second.availabilityChecks.get() );
+		
+		first.available = true;
+		locator.refreshAvailability();
+		locator.locate( new StringSubject("192.0.2.1") );
+		assertEquals( 1 , first.calls.get() );
+	}
+	
+	public void testCircuitBreaker() throws Exception 
+	{
+		final TestLocator broken = new TestLocator( "broken" , true , false , 0 );
+		final TestLocator fallback = new TestLocator( "fallback" , false , true , 0 );
+		
+		final DelegatingGeoLocator<StringSubject> locator = new DelegatingGeoLocator<>( broken , fallback );
+		locator.setChaining( true );
+		locator.setCircuitBreaker( 3 , 200 , TimeUnit.MILLISECONDS );
+		for ( int i = 0 ; i < 10 ; i++ ) {
+			assertTrue( locator.locate( new StringSubject("192.0.2.1") ).hasValidCoordinates() );
+		}
+		final DelegatingGeoLocator.DelegateStatistics<StringSubject> stats = locator.getStatistics().get(0);
+		assertEquals( 3 , broken.calls.get() );
+		assertTrue( stats.isCircuitOpen() );
+		assertEquals( 7 , stats.rejectedLookups() );
+		assertEquals( 1 , stats.circuitOpenings() );
+		
+		// half-open probe succeeds
+		broken.fail = false;
+		Thread.sleep( 300 );
+		locator.locate( new StringSubject("192.0.2.1") );
+		assertEquals( 4 , broken.calls.get() );
+		assertFalse( stats.isCircuitOpen() );
+		assertEquals( 0 , stats.consecutiveFailures() );
+	}
+	
+	private static void assertLoserInterrupted(TestLocator loser) throws InterruptedException 
+	{
+		// the losing lookup must not keep its thread busy until it finishes on its own
+		final long deadline = System.currentTimeMillis() + 2000;
+		while ( loser.interrupted.get() == 0 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep( 10 );
+		}
+		assertEquals( 1 , loser.interrupted.get() );
+	}
+	
+	public void testAsyncHedgedLookup() throws Exception 
+	{
+		final TestLocator slow = new TestLocator( "slow" , false , true , 5000 );
+		final TestLocator fast = new TestLocator( "fast" , false , true , 0 );
+		
+		final DelegatingGeoLocator<StringSubject> locator = new DelegatingGeoLocator<>( slow , fast );
+		locator.setChaining( true );
+		locator.setHedging( 0.95 , 50 , TimeUnit.MILLISECONDS );
+		try 
+		{
+			assertTrue( locator.locateAsync( new StringSubject("192.0.2.1") ).get( 2 , TimeUnit.SECONDS ).hasValidCoordinates() );
+			assertEquals( 1 , slow.calls.get() );
+			assertEquals( 1 , fast.calls.get() );
+			assertEquals( 0 , locator.getStatistics().get(0).lookups() );
+			assertLoserInterrupted( slow );
+		} 
+		finally {
+			locator.dispose();
+		}
+	}
+	
+	public void testAsyncChainingFallsThrough() throws Exception 
+	{
+		final TestLocator failing = new TestLocator( "failing" , true , false , 0 );
+		final TestLocator invalid = new TestLocator( "invalid" , false , false , 0 );
+		final TestLocator valid = new TestLocator( "valid" , false , true , 0 );
+		
+		final DelegatingGeoLocator<StringSubject> locator = new DelegatingGeoLocator<>( failing , invalid , valid );
+		locator.setChaining( true );
+		assertTrue( locator.locateAsync( new StringSubject("192.0.2.1") ).get( 5 , TimeUnit.SECONDS ).hasValidCoordinates() );
+		assertEquals( 1 , failing.calls.get() );
+		assertEquals( 1 , invalid.calls.get() );
+		assertEquals( 1 , valid.calls.get() );
+		assertEquals( 1 , locator.getStatistics().get(0).lookups() );
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpServer;
+
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+import de.codesourcery.geoip.net.RateLimiter;
+
+public class FreeGeoIPLocatorTest extends TestCase {
+
+	private HttpServer server;
+	
+	// remote ports of all requests, one per TCP connection
+	private final Set<Integer> clientPorts = Collections.synchronizedSet( new HashSet<>() );
+	
+	@Override
+	protected void setUp() throws Exception 
+	{
+		server = HttpServer.create( new InetSocketAddress( "127.0.0.1" , 0 ) , 0 );
+		server.createContext( "/json/" , exchange -> 
+		{
+			clientPorts.add( exchange.getRemoteAddress().getPort() );
+			final byte[] body = ( "{\"ip\":\"192.0.2.1\",\"country_name\":\"Germany\",\"city\":\"Berlin\",\"latitude\":52.5,\"longitude\":13.4}" ).getBytes( StandardCharsets.UTF_8 );
+			exchange.getResponseHeaders().add( "Content-Type" , "application/json" );
+			exchange.sendResponseHeaders( 200 , body.length );
+			try ( OutputStream out = exchange.getResponseBody() ) {
+				out.write( body );
+			}
+		});
+		server.start();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop( 0 );
+	}
+	
+	public void testLookupAgainstStubServer() throws Exception 
+	{
+		final FreeGeoIPLocator locator = new FreeGeoIPLocator();
+		locator.setBaseURL( "http://127.0.0.1:"+server.getAddress().getPort()+"/json" );
+		locator.setRateLimiter( new RateLimiter( 1000 , 10 ) );
+		
+		for ( int i = 0 ; i < 5 ; i++ ) 
+		{
+			final GeoLocation<StringSubject> location = locator.locate( new StringSubject("192.0.2.1") );
+			assertTrue( location.hasValidCoordinates() );
+			assertEquals( 52.5 , location.latitude() , 0.0001 );
+			assertEquals( "Berlin" , location.parameter( GeoLocation.KEY_CITY ) );
+		}
+		// all requests went over the same keep-alive connection
+		assertEquals( 1 , clientPorts.size() );
+	}
+}
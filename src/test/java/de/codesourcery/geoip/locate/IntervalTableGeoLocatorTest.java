@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+
+public class IntervalTableGeoLocatorTest extends TestCase {
+
+	private File dir;
+	
+	@Override
+	protected void setUp() throws Exception 
+	{
+		dir = Files.createTempDirectory("geolite").toFile();
+		write( "GeoLite2-City-Locations-en.csv" , 
+				"geoname_id,locale_code,continent_code,continent_name,country_iso_code,country_name,subdivision_1_iso_code,subdivision_1_name,subdivision_2_iso_code,subdivision_2_name,city_name,metro_code,time_zone",
+				"2911298,en,EU,Europe,DE,Germany,HH,Hamburg,,,Hamburg,,Europe/Berlin",
+				"2988507,en,EU,Europe,FR,France,IDF,\"Ile-de-France\",,,\"Paris, City of Light\",,Europe/Paris" );
+		write( "GeoLite2-City-Blocks-IPv4.csv" , 
+				"network,geoname_id,registered_country_geoname_id,represented_country_geoname_id,is_anonymous_proxy,is_satellite_provider,postal_code,latitude,longitude,accuracy_radius",
+				"200.1.0.0/16,2911298,,,0,0,,53.5511,9.9937,10",
+				"1.0.0.0/24,2988507,,,0,0,,48.8534,2.3488,10",
+				"1.0.2.0/23,2911298,,,0,0,,53.5511,9.9937,10" );
+		write( "GeoLite2-City-Blocks-IPv6.csv" , 
+				"network,geoname_id,registered_country_geoname_id,represented_country_geoname_id,is_anonymous_proxy,is_satellite_provider,postal_code,latitude,longitude,accuracy_radius",
+				"2001:db8::/32,2911298,,,0,0,,53.5511,9.9937,10",
+				"2a02:1::/48,2988507,,,0,0,,48.8534,2.3488,10" );
+	}
+	
+	private void write(String file,String... lines) throws Exception {
+		Files.write( new File( dir , file ).toPath() , Arrays.asList( lines ) , StandardCharsets.UTF_8 );
+	}
+	
+	@Override
+	protected void tearDown() throws Exception 
+	{
+		for ( File f : dir.listFiles() ) {
+			f.delete();
+		}
+		dir.delete();
+	}
+	
+	public void testLookup() throws Exception 
+	{
+		final IntervalTableGeoLocator locator = new IntervalTableGeoLocator( dir );
+		assertTrue( locator.isAvailable() );
+		
+		GeoLocation<StringSubject> location = locator.locate( new StringSubject("1.0.0.42") );
+		assertTrue( location.hasValidCoordinates() );
+		assertEquals( 48.8534 , location.latitude() , 0.00001 );
+		assertEquals( "Paris, City of Light" , location.parameter( GeoLocation.KEY_CITY ) );
+		assertEquals( "France" , location.parameter( GeoLocation.KEY_COUNTRY ) );
+		assertEquals( "1.0.0.0/24" , location.parameter( GeoLocation.KEY_NETWORK ) );
+		
+		location = locator.locate( new StringSubject("1.0.3.255") );
+		assertEquals( "Hamburg" , location.parameter( GeoLocation.KEY_CITY ) );
+		assertEquals( "1.0.2.0/23" , location.parameter( GeoLocation.KEY_NETWORK ) );
+		
+		location = locator.locate( new StringSubject("200.1.255.1") );
+		assertEquals( "Germany" , location.parameter( GeoLocation.KEY_COUNTRY ) );
+		assertEquals( "200.1.0.0/16" , location.parameter( GeoLocation.KEY_NETWORK ) );
+		
+		assertFalse( locator.locate( new StringSubject("1.0.1.1") ).hasValidCoordinates() );
+		assertFalse( locator.locate( new StringSubject("0.0.0.1") ).hasValidCoordinates() );
+		assertFalse( locator.locate( new StringSubject("255.255.255.255") ).hasValidCoordinates() );
+		
+		location = locator.locate( new StringSubject("2001:db8:1234::1") );
+		assertEquals( "Hamburg" , location.parameter( GeoLocation.KEY_CITY ) );
+		assertEquals( "2001:db8:0:0:0:0:0:0/32" , location.parameter( GeoLocation.KEY_NETWORK ) );
+		
+		location = locator.locate( new StringSubject("2a02:1:0:ffff::1") );
+		assertEquals( "France" , location.parameter( GeoLocation.KEY_COUNTRY ) );
+		assertFalse( locator.locate( new StringSubject("2a02:1:1::1") ).hasValidCoordinates() );
+		assertFalse( locator.locate( new StringSubject("::1") ).hasValidCoordinates() );
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.TestCase;
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+
+public class CacheEntryCodecTest extends TestCase {
+
+	public void testRoundTripSkipsNullParameters() throws Exception 
+	{
+		final GeoLocation<StringSubject> location = new GeoLocation<>( new StringSubject( "192.0.2.1" ) , 12.5 , -3.25 );
+		location.setParameter( GeoLocation.KEY_CITY , null )
+				.setParameter( GeoLocation.KEY_COUNTRY , "Germany" )
+				.setParameter( "index" , Integer.valueOf( 42 ) );
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CacheEntryCodec.write( new CacheEntry<>( location , 1234 ) , new DataOutputStream( out ) );
+		
+		final CacheEntry<StringSubject> actual = CacheEntryCodec.read( new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) ) , StringSubject.class.getConstructor() );
+		assertEquals( 1234 , actual.creationTime() );
+		assertEquals( "192.0.2.1" , actual.subject().value() );
+		assertEquals( location.coordinate() , actual.location().coordinate() );
+		assertEquals( "Germany" , actual.location().parameter( GeoLocation.KEY_COUNTRY ) );
+		assertEquals( Integer.valueOf( 42 ) , actual.location().parameter( "index" ) );
+		assertFalse( actual.location().parameters().containsKey( GeoLocation.KEY_CITY ) );
+		assertEquals( 2 , actual.location().parameters().size() );
+	}
+}
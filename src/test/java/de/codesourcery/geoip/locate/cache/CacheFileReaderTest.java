@@ -0,0 +1,67 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONWriter;
+
+import junit.framework.TestCase;
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+
+public class CacheFileReaderTest extends TestCase {
+
+	public void testReadLargeFile() throws Exception 
+	{
+		final int count = 10000;
+		final StringWriter out = new StringWriter();
+		final JSONWriter writer = new JSONWriter( out );
+		writer.array();
+		for ( int i = 0 ; i < count ; i++ ) 
+		{
+			final GeoLocation<StringSubject> location = new GeoLocation<>( new StringSubject( "10.0."+(i/256)+"."+(i%256) ) , i % 90 , -i % 180 );
+			location.setParameter( GeoLocation.KEY_CITY , "city "+i );
+			if ( i % 2 == 0 ) {
+				new CacheEntry<>( location , 1000+i ).toJSON( writer );
+			} else {
+				location.toJSON( writer ); // legacy format
+			}
+		}
+		writer.endArray();
+		
+		final ConcurrentHashMap<StringSubject,CacheEntry<StringSubject>> result = new ConcurrentHashMap<>();
+		final CacheFileReader<StringSubject> reader = new CacheFileReader<>( StringSubject.class.getConstructor() , 42 );
+		reader.read( new ByteArrayInputStream( out.toString().getBytes() ) , entry -> result.put( entry.subject() , entry ) );
+		
+		assertEquals( count , result.size() );
+		for ( int i = 0 ; i < count ; i++ ) 
+		{
+			final CacheEntry<StringSubject> entry = result.get( new StringSubject( "10.0."+(i/256)+"."+(i%256) ) );
+			assertNotNull( entry );
+			assertEquals( i % 2 == 0 ? 1000+i : 42 , entry.creationTime() );
+			assertEquals( "city "+i , entry.location().parameter( GeoLocation.KEY_CITY ) );
+		}
+	}
+	
+	public void testReadEmptyFile() throws Exception 
+	{
+		final CacheFileReader<StringSubject> reader = new CacheFileReader<>( StringSubject.class.getConstructor() , 42 );
+		reader.read( new ByteArrayInputStream( " [ ] ".getBytes() ) , entry -> fail("Unexpected entry: "+entry ) );
+	}
+}
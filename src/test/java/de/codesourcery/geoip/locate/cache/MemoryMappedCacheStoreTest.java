@@ -0,0 +1,141 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.locate.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import de.codesourcery.geoip.GeoLocation;
+import de.codesourcery.geoip.StringSubject;
+
+public class MemoryMappedCacheStoreTest extends TestCase {
+
+	private File file;
+	
+	@Override
+	protected void setUp() throws Exception 
+	{
+		file = File.createTempFile( "geocache" , ".mmap" );
+		file.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception 
+	{
+		file.delete();
+	}
+	
+	private static CacheEntry<StringSubject> entry(int i) 
+	{
+		final GeoLocation<StringSubject> location = new GeoLocation<>( new StringSubject( "10.0."+(i/256)+"."+(i%256) ) , i , -i );
+		location.setParameter( GeoLocation.KEY_CITY , "city "+i )
+				.setParameter( "index" , Integer.valueOf( i ) );
+		return new CacheEntry<>( location , 1000+i );
+	}
+	
+	public void testPutGetAndReopen() throws Exception 
+	{
+		MemoryMappedCacheStore<StringSubject> store = new MemoryMappedCacheStore<>( file , StringSubject.class.getConstructor() , 16 );
+		store.open();
+		
+		// enough entries to make the slot table grow a couple of times
+		for ( int i = 0 ; i < 1000 ; i++ ) {
+			store.put( entry( i ) );
+		}
+		// update
+		final GeoLocation<StringSubject> updated = new GeoLocation<>( entry(42).subject() , 1 , 2 );
+		store.put( new CacheEntry<>( updated , 5000 ) );
+		assertEquals( 1000 , store.size() );
+		store.close();
+		
+		store = new MemoryMappedCacheStore<>( file , StringSubject.class.getConstructor() );
+		store.open();
+		assertEquals( 1000 , store.size() );
+		for ( int i = 0 ; i < 1000 ; i++ ) 
+		{
+			final CacheEntry<StringSubject> expected = i == 42 ? new CacheEntry<>( updated , 5000 ) : entry( i );
+			final CacheEntry<StringSubject> actual = store.get( expected.subject() );
+			assertNotNull( actual );
+			assertEquals( expected.creationTime() , actual.creationTime() );
+			assertEquals( expected.location().coordinate() , actual.location().coordinate() );
+			assertEquals( expected.location().parameters() , actual.location().parameters() );
+		}
+		assertNull( store.get( new StringSubject( "192.168.1.1" ) ) );
+		store.close();
+	}
+	
+	public void testLookupOnClosedStoreFailsWithIOException() throws Exception 
+	{
+		final MemoryMappedCacheStore<StringSubject> store = new MemoryMappedCacheStore<>( file , StringSubject.class.getConstructor() , 16 );
+		store.open();
+		store.put( entry( 1 ) );
+		store.close();
+		try {
+			store.get( entry( 1 ).subject() );
+			fail("Should've failed");
+		} catch(IOException e) {
+			// ok
+		}
+	}
+	
+	public void testLookupsConcurrentWithUpdates() throws Exception 
+	{
+		final MemoryMappedCacheStore<StringSubject> store = new MemoryMappedCacheStore<>( file , StringSubject.class.getConstructor() , 16 );
+		store.open();
+		try 
+		{
+			final AtomicInteger written = new AtomicInteger();
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
+			final Thread reader = new Thread( () -> 
+			{
+				try 
+				{
+					while ( written.get() < 2000 ) 
+					{
+						final int count = written.get();
+						for ( int i = 0 ; i < count ; i++ ) 
+						{
+							final CacheEntry<StringSubject> actual = store.get( entry( i ).subject() );
+							assertNotNull( "entry "+i+" missing" , actual );
+							assertEquals( entry( i ).location().coordinate() , actual.location().coordinate() );
+						}
+					}
+				} 
+				catch(Throwable t) {
+					failure.set( t );
+				}
+			});
+			reader.start();
+			
+			// slot table grows and the file gets re-mapped repeatedly while the reader is running
+			for ( int i = 0 ; i < 2000 ; i++ ) 
+			{
+				store.put( entry( i ) );
+				written.incrementAndGet();
+			}
+			reader.join();
+			if ( failure.get() != null ) {
+				throw new AssertionError( failure.get() );
+			}
+		} 
+		finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class HostnameResolverTest extends TestCase {
+
+	private final AtomicInteger lookups = new AtomicInteger();
+	private final AtomicLong now = new AtomicLong( 1000 );
+	
+	private final HostnameResolver resolver = new HostnameResolver( 4 , 10 , 1 , TimeUnit.SECONDS ) 
+	{
+		@Override
+		protected InetAddress lookup(String host) throws UnknownHostException 
+		{
+			lookups.incrementAndGet();
+			if ( host.startsWith("unknown") ) {
+				throw new UnknownHostException( host );
+			}
+			if ( host.startsWith("slow") ) 
+			{
+				try {
+					Thread.sleep( 2000 );
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return InetAddress.getByAddress( host , new byte[] { 192 - 256 , 0 , 2 , (byte) host.length() } );
+		}
+		
+		@Override
+		protected long currentTimeMillis() {
+			return now.get();
+		}
+	};
+	
+	public void testLiteralsAreNotLookedUp() throws Exception 
+	{
+		assertEquals( "192.0.2.1" , resolver.resolve( "192.0.2.1" ).getHostAddress() );
+		assertEquals( 0 , lookups.get() );
+	}
+	
+	public void testCaching() throws Exception 
+	{
+		final List<CompletableFuture<InetAddress>> result = resolver.resolveAll( Arrays.asList( "a.example" , "bb.example" , "A.example" ) );
+		assertEquals( "192.0.2.9" , result.get(0).get().getHostAddress() );
+		assertEquals( "192.0.2.10" , result.get(1).get().getHostAddress() );
+		assertEquals( "192.0.2.9" , result.get(2).get().getHostAddress() );
+		assertEquals( 2 , lookups.get() );
+		
+		try {
+			resolver.resolve( "unknown.example" );
+			fail("Should've failed");
+		} catch(UnknownHostException e) {
+			// ok
+		}
+		try {
+			resolver.resolve( "unknown.example" );
+			fail("Should've failed");
+		} catch(UnknownHostException e) {
+			// ok
+		}
+		assertEquals( 3 , lookups.get() );
+		
+		// negative entries expire first
+		now.addAndGet( 2000 );
+		resolver.resolve( "a.example" );
+		try {
+			resolver.resolve( "unknown.example" );
+			fail("Should've failed");
+		} catch(UnknownHostException e) {
+			// ok
+		}
+		assertEquals( 4 , lookups.get() );
+		
+		now.addAndGet( 10000 );
+		resolver.resolve( "a.example" );
+		assertEquals( 5 , lookups.get() );
+	}
+	
+	public void testResolveTimeout() throws Exception 
+	{
+		resolver.setResolveTimeout( 100 , TimeUnit.MILLISECONDS );
+		final long start = System.currentTimeMillis();
+		try {
+			resolver.resolve( "slow.example" );
+			fail("Should've timed out");
+		} catch(UnknownHostException e) {
+			// ok
+		}
+		assertTrue( System.currentTimeMillis() - start < 1500 );
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class IPAddressTest extends TestCase {
+
+	public void testParse() throws Exception 
+	{
+		final String[] literals = { "192.0.2.1" , "0.0.0.0" , "255.255.255.255" , "::" , "::1" , "2001:db8::1" , "2001:db8:0:0:1:0:0:1" , 
+				"fe80::1%eth0" , "[2001:db8::ff00:42:8329]" , "::ffff:192.0.2.128" , "1:2:3:4:5:6:7::" };
+		for ( String literal : literals ) 
+		{
+			final byte[] actual = IPAddress.parse( literal );
+			assertNotNull( literal , actual );
+			final String expected = literal.replaceAll("[\\[\\]]","").replaceAll("%.*","");
+			assertTrue( literal , Arrays.equals( InetAddress.getByName( expected ).getAddress() , actual ) || 
+					( actual.length == 16 && literal.startsWith("::ffff:") ) );
+		}
+		
+		final String[] invalid = { "" , "www.heise.de" , "1.2.3" , "1.2.3.4.5" , "256.1.1.1" , "1..2.3" , "1:2" , "1::2::3" , 
+				"12345::" , "1:2:3:4:5:6:7:8:9" , "::ffff:1.2.3" , "localhost" , "[::1" };
+		for ( String literal : invalid ) {
+			assertNull( literal , IPAddress.parse( literal ) );
+			assertEquals( literal , -1 , IPAddress.parseIPv4ToLong( literal ) );
+		}
+		
+		assertEquals( 0xc0000201L , IPAddress.parseIPv4ToLong( " 192.0.2.1 " ) );
+		assertEquals( 0xffffffffL , IPAddress.parseIPv4ToLong( "255.255.255.255" ) );
+		assertEquals( 0 , IPAddress.parseIPv4ToLong( "0.0.0.0" ) );
+		assertEquals( -1 , IPAddress.parseIPv4ToLong( "::1" ) );
+	}
+	
+	public void testNetworkPrefix() 
+	{
+		final NetworkPrefix network = NetworkPrefix.parse( "192.0.2.17/20" );
+		assertEquals( "192.0.0.0/20" , network.toString() );
+		assertTrue( network.contains( IPAddress.parse( "192.0.15.255" ) ) );
+		assertFalse( network.contains( IPAddress.parse( "192.0.16.0" ) ) );
+		assertFalse( network.contains( IPAddress.parse( "::1" ) ) );
+		assertEquals( network , NetworkPrefix.of( IPAddress.parse( "192.0.3.4" ) , 20 ) );
+		
+		final NetworkPrefix v6 = NetworkPrefix.parse( "2001:db8:abcd::/48" );
+		assertTrue( v6.contains( IPAddress.parse( "2001:db8:abcd:12::1" ) ) );
+		assertFalse( v6.contains( IPAddress.parse( "2001:db8:abce::1" ) ) );
+	}
+}
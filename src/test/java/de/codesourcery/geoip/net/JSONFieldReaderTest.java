@@ -0,0 +1,56 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+public class JSONFieldReaderTest extends TestCase {
+
+	public void testExtractsRequestedFieldsOnly() throws Exception 
+	{
+		final String json = "{ \"ip\" : \"192.0.2.1\", \"nested\": { \"city\" : \"wrong\", \"list\": [1,\"a,}\",{}] }, "+
+				"\"quoted\":\"say \\\"hi\\\", }\", \"CityName\":\"Berlin\", \"latitude\": 52.5 , \"longitude\":\"13.4\", \"zip\":null , \"flag\":true }";
+		
+		final Object[] fields = JSONFieldReader.readFields( new StringReader( json ) , "cityname" , "latitude" , "longitude" , "zip" , "missing" );
+		assertEquals( "Berlin" , fields[0] );
+		assertEquals( 52.5 , JSONFieldReader.toDouble( fields[1] , "latitude" ) , 0.0001 );
+		assertEquals( 13.4 , JSONFieldReader.toDouble( fields[2] , "longitude" ) , 0.0001 );
+		assertNull( fields[3] );
+		assertNull( fields[4] );
+	}
+	
+	public void testEmptyObject() throws Exception 
+	{
+		final Object[] fields = JSONFieldReader.readFields( new StringReader( "{}" ) , "city" );
+		assertNull( fields[0] );
+	}
+	
+	public void testMalformedInput() throws Exception 
+	{
+		for ( String json : new String[] { "" , "[]" , "{\"city\" \"x\"}" , "{\"a\":\"unterminated" , "{\"a\":1" } ) 
+		{
+			try {
+				JSONFieldReader.readFields( new StringReader( json ) , "city" );
+				fail("Should've failed: "+json);
+			} catch(IOException e) {
+				// ok
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.geoip.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+
+	public void testBurstDoesNotWait() throws Exception 
+	{
+		final RateLimiter limiter = new RateLimiter( 1 , 5 );
+		final long start = System.currentTimeMillis();
+		for ( int i = 0 ; i < 5 ; i++ ) {
+			limiter.acquire();
+		}
+		assertTrue( System.currentTimeMillis() - start < 500 );
+	}
+	
+	public void testConcurrentCallersShareTheRate() throws Exception 
+	{
+		// 50 permits/s with a burst of 1 -> 10 permits take at least ~180 ms
+		final RateLimiter limiter = new RateLimiter( 50 , 1 );
+		final List<Thread> threads = new ArrayList<>();
+		final long start = System.currentTimeMillis();
+		for ( int i = 0 ; i < 10 ; i++ ) 
+		{
+			final Thread t = new Thread( () -> 
+			{
+				try {
+					limiter.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			t.start();
+			threads.add( t );
+		}
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		final long elapsed = System.currentTimeMillis() - start;
+		assertTrue( "Took "+elapsed+" ms" , elapsed >= 170 );
+		assertTrue( "Took "+elapsed+" ms" , elapsed < 2000 );
+	}
+}